@@ -0,0 +1,60 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个请求、每条订单消息都要做一次的 Map -> Bean 转换
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanUtilBenchmark {
+
+    private Map<Object, Object> userMap;
+
+    private Map<Object, Object> orderMessage;
+
+    @Setup
+    public void setup() {
+        // RefreshTokenInterceptor：登录用户的Hash，值都是字符串
+        userMap = new HashMap<>();
+        userMap.put("id", "1010");
+        userMap.put("nickName", "user_slxaxy2au9f3tanffaxr");
+        userMap.put("icon", "/imgs/icons/kkjtbcr.jpg");
+
+        // 订单消费者：stream.orders 的一条消息
+        orderMessage = new HashMap<>();
+        orderMessage.put("userId", "1010");
+        orderMessage.put("voucherId", "10");
+        orderMessage.put("id", "129589183479021586");
+    }
+
+    @Benchmark
+    public UserDTO refreshTokenUser() {
+        return BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+    }
+
+    @Benchmark
+    public VoucherOrder orderMessage() {
+        return BeanUtil.fillBeanWithMap(orderMessage, new VoucherOrder(), true);
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient命中缓存时的耗时：不开进程内缓存时是一次GET加反序列化，开了之后直接命中本地。数据库回调不应该被调用到。
+ * 不开进程内缓存时各编码的差别就是一次解码的差别
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheClientBenchmark {
+
+    private static final String PASS_THROUGH_KEY = "bench:shop:";
+
+    @Param({"false", "true"})
+    private boolean local;
+
+    @Param({"JSON", "SMILE", "BINARY"})
+    private CacheProperties.Codec codec;
+
+    private RedisStandIn redis;
+
+    private CacheClient cacheClient;
+
+    @Setup
+    public void setup() throws IOException {
+        redis = new RedisStandIn();
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setLocalEnabled(local);
+        cacheProperties.setCodec(codec);
+        cacheClient = new CacheClient(redis.getStringRedisTemplate(), cacheProperties, redis.getListenerContainer());
+        Shop shop = Fixtures.shop();
+        cacheClient.set(PASS_THROUGH_KEY + shop.getId(), shop, 1L, TimeUnit.HOURS);
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop, 1L, TimeUnit.HOURS);
+        // 空值缓存
+        redis.getStringRedisTemplate().opsForValue().set(PASS_THROUGH_KEY + 0, "", 1L, TimeUnit.HOURS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        redis.close();
+    }
+
+    @Benchmark
+    public Shop queryWithPassThroughHit() {
+        return cacheClient.queryWithPassThrough(PASS_THROUGH_KEY, 1L, Shop.class, CacheClientBenchmark::noDb, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop queryWithPassThroughNullHit() {
+        return cacheClient.queryWithPassThrough(PASS_THROUGH_KEY, 0L, Shop.class, CacheClientBenchmark::noDb, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop queryWithLogicalExpireHit() {
+        return cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, CacheClientBenchmark::noDb, 1L, TimeUnit.HOURS);
+    }
+
+    private static Shop noDb(Long id) {
+        throw new IllegalStateException("缓存应该命中，id=" + id);
+    }
+}
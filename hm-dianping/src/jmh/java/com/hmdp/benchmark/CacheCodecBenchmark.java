@@ -0,0 +1,64 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.ShopBinaryCodec;
+import com.hmdp.utils.SmileCacheCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存值各种编码的编码、解码耗时（不含CacheClient的10字节头）。
+ * 以前逻辑过期的值是 RedisData 的JSON，对比见 JsonBenchmark.redisDataFromJson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "smile", "binary"})
+    private String codecName;
+
+    private CacheCodec codec;
+
+    private Shop shop;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        codec = "smile".equals(codecName) ? new SmileCacheCodec()
+                : "binary".equals(codecName) ? new ShopBinaryCodec()
+                : new JsonCacheCodec();
+        shop = Fixtures.shop();
+        encoded = codec.encode(shop);
+        if (!shop.equals(codec.decode(encoded, 0, encoded.length, Shop.class))) {
+            throw new IllegalStateException(codecName + "编码后解码不一致");
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        return codec.decode(encoded, 0, encoded.length, Shop.class);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.ReflectUtil;
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三种ID生成方式的吞吐，4个线程并发发号
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class IdWorkerBenchmark {
+
+    @Param({"INCR", "SEGMENT", "SNOWFLAKE"})
+    private IdProperties.Mode mode;
+
+    private RedisStandIn redis;
+
+    private IdGenerator idGenerator;
+
+    @Setup
+    public void setup() throws IOException {
+        redis = new RedisStandIn();
+        IdProperties idProperties = new IdProperties();
+        idProperties.setMode(mode);
+        idGenerator = mode == IdProperties.Mode.SNOWFLAKE ? new SnowflakeIdWorker() : new RedisIdWorker();
+        ReflectUtil.setFieldValue(idGenerator, "stringRedisTemplate", redis.getStringRedisTemplate());
+        ReflectUtil.setFieldValue(idGenerator, "idProperties", idProperties);
+        if (mode == IdProperties.Mode.SNOWFLAKE) {
+            // 租workerId
+            ReflectUtil.invoke(idGenerator, "init");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (mode == IdProperties.Mode.SNOWFLAKE) {
+            ReflectUtil.invoke(idGenerator, "destroy");
+        }
+        redis.close();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idGenerator.nextId("order");
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存读写用的JSONUtil序列化、反序列化，逻辑过期的 RedisData 要多转一次 JSONObject
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private Shop shop;
+
+    private RedisData redisData;
+
+    private String shopJson;
+
+    private String redisDataJson;
+
+    @Setup
+    public void setup() {
+        shop = Fixtures.shop();
+        redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusHours(1));
+        shopJson = JSONUtil.toJsonStr(shop);
+        redisDataJson = JSONUtil.toJsonStr(redisData);
+    }
+
+    @Benchmark
+    public String shopToJson() {
+        return JSONUtil.toJsonStr(shop);
+    }
+
+    @Benchmark
+    public Shop shopFromJson() {
+        return JSONUtil.toBean(shopJson, Shop.class);
+    }
+
+    @Benchmark
+    public String redisDataToJson() {
+        return JSONUtil.toJsonStr(redisData);
+    }
+
+    /**
+     * 和 CacheClient.queryWithLogicalExpire 一样：先转 RedisData，再把 data 转成 Shop
+     */
+    @Benchmark
+    public Shop redisDataFromJson() {
+        RedisData data = JSONUtil.toBean(redisDataJson, RedisData.class);
+        return JSONUtil.toBean((JSONObject) data.getData(), Shop.class);
+    }
+}
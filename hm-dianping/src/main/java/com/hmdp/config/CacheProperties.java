@@ -0,0 +1,110 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * CacheClient的配置，对应 application.yaml 中的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 是否在Redis前面加一层进程内缓存
+     */
+    private boolean localEnabled = false;
+
+    /**
+     * 进程内缓存最多保存的key数，超过后按W-TinyLFU淘汰
+     */
+    private long localMaxSize = 10000;
+
+    /**
+     * 进程内缓存的有效期，失效广播丢了的话最多读到这么久的旧数据
+     */
+    private Duration localTtl = Duration.ofSeconds(30);
+
+    /**
+     * queryWithMutex 没抢到锁时等别的节点重建的最长时间，超时后直接查数据库
+     */
+    private Duration mutexMaxWait = Duration.ofSeconds(1);
+
+    /**
+     * 写入Redis时缓存值的编码，读取时按值头部记录的编码解码，切换编码不用清缓存
+     */
+    private Codec codec = Codec.JSON;
+
+    /**
+     * 是否用布隆过滤器拦截不存在的店铺、笔记id，启动时从数据库构建
+     */
+    private boolean bloomEnabled = false;
+
+    /**
+     * 每个布隆过滤器预计容纳的id数，超过之后误判率会上升
+     */
+    private long bloomExpectedInsertions = 1000000;
+
+    /**
+     * 容纳 bloomExpectedInsertions 个id时的误判率
+     */
+    private double bloomFpp = 0.01;
+
+    /**
+     * 和Redis中的位图互相合并的间隔，补上漏掉的新增广播
+     */
+    private Duration bloomSyncInterval = Duration.ofMinutes(1);
+
+    /**
+     * 构建时每次从数据库读取的id数
+     */
+    private int bloomBuildPageSize = 5000;
+
+    /**
+     * 是否统计每个key的访问频率，CacheClient.query 对热点key自动改用逻辑过期 + 进程内缓存
+     */
+    private boolean hotKeyEnabled = false;
+
+    /**
+     * 一个统计窗口内访问次数达到这个值就升级为热点key，降到一半以下再降级
+     */
+    private int hotKeyThreshold = 300;
+
+    /**
+     * 统计窗口，按 hotKeyWindowSlots 个时间片滑动
+     */
+    private Duration hotKeyWindow = Duration.ofMinutes(1);
+
+    private int hotKeyWindowSlots = 6;
+
+    /**
+     * Count-Min Sketch 每行的计数器个数和行数，内存是 width * depth * slots * 4 字节
+     */
+    private int hotKeySketchWidth = 4096;
+
+    private int hotKeySketchDepth = 4;
+
+    /**
+     * 同时最多有多少个热点key，超过之后不再升级
+     */
+    private int hotKeyMaxSize = 1000;
+
+    public enum Codec {
+        /**
+         * hutool JSON
+         */
+        JSON,
+        /**
+         * Jackson Smile，JSON的二进制形式
+         */
+        SMILE,
+        /**
+         * 手写的二进制格式，目前只有 Shop，其他类型用JSON
+         */
+        BINARY
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 全局ID生成配置，对应 application.yaml 中的 hmdp.id
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    /**
+     * 序列号的分配方式
+     */
+    private Mode mode = Mode.INCR;
+
+    /**
+     * 号段模式下每次向Redis申请的序列号个数
+     */
+    private int segmentStep = 1000;
+
+    /**
+     * 当前号段剩余不到这个比例时，后台提前申请下一个号段
+     */
+    private double segmentPrefetchRatio = 0.2;
+
+    /**
+     * 雪花模式下workerId租约的有效期，节点挂掉后这么久别的节点才能用它的workerId
+     */
+    private Duration workerLeaseTtl = Duration.ofSeconds(30);
+
+    /**
+     * 雪花模式下续期workerId租约的间隔，要明显小于租期
+     */
+    private Duration workerHeartbeatInterval = Duration.ofSeconds(10);
+
+    public enum Mode {
+        /**
+         * 每个ID一次INCR
+         */
+        INCR,
+        /**
+         * 一次INCRBY申请一段序列号，在本地发放，双缓冲提前申请下一段
+         */
+        SEGMENT,
+        /**
+         * 雪花算法：毫秒时间戳 + 启动时从Redis租到的workerId + 每毫秒的本地序列号，发号不访问Redis
+         */
+        SNOWFLAKE
+    }
+}
@@ -1,6 +1,8 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -8,6 +10,7 @@ import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.stream.Collectors;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,6 +18,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private RateLimitProperties rateLimitProperties;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
@@ -24,6 +33,16 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 );
 
+        // 限流要在登录校验之前，又要在刷新token之后，才能按用户限流
+        if (rateLimitProperties.isEnabled() && !rateLimitProperties.getRules().isEmpty()) {
+            registry.addInterceptor(new RateLimitInterceptor(rateLimiter, rateLimitProperties))
+                    .addPathPatterns(rateLimitProperties.getRules().stream()
+                            .map(RateLimitProperties.Rule::getPath)
+                            .distinct()
+                            .collect(Collectors.toList()))
+                    .order(1);
+        }
+
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
                         "/shop/**",
@@ -33,7 +52,7 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/blog/hot",
                         "/user/code",
                         "/user/login"
-                ).order(1);
+                ).order(2);
 
     }
 }
@@ -0,0 +1,76 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接口限流配置，对应 application.yaml 中的 hmdp.rate-limit
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    /**
+     * 从Redis预取到本地的令牌，超过这个时间没用完就作废，避免某个节点长期囤积令牌
+     */
+    private Duration prefetchTtl = Duration.ofSeconds(1);
+
+    /**
+     * 可信的反向代理，IP或者CIDR。只有请求直接来自这些地址时才看X-Forwarded-For，
+     * 为空时按连接的对端地址限流，客户端伪造请求头也绕不过去
+     */
+    private List<String> trustedProxies = new ArrayList<>();
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 路径，支持Ant风格的通配符
+         */
+        private String path;
+
+        /**
+         * 限流维度
+         */
+        private Dimension dimension = Dimension.ENDPOINT;
+
+        /**
+         * 令牌桶容量，也就是允许的突发请求数
+         */
+        private int capacity;
+
+        /**
+         * 每秒生成的令牌数，可以是小数，为0时拦截所有请求
+         */
+        private double rate;
+
+        /**
+         * 每次从Redis预取的令牌数，为1时每个请求都去Redis取
+         */
+        private int prefetch = 1;
+    }
+
+    public enum Dimension {
+        /**
+         * 按登录用户限流，没有登录的按IP
+         */
+        USER,
+        /**
+         * 按客户端IP限流
+         */
+        IP,
+        /**
+         * 整个接口一起限流
+         */
+        ENDPOINT
+    }
+}
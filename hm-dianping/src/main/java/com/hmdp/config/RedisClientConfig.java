@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import io.lettuce.core.ClientOptions;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class RedisClientConfig {
+
+    /**
+     * 开启本地订单日志时，Redis断线期间的命令直接失败，而不是排队等重连，
+     * 秒杀请求才能立刻转去写本地日志，不会把请求线程卡住
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.seckill", name = "journal-enabled", havingValue = "true")
+    public LettuceClientConfigurationBuilderCustomizer rejectWhenDisconnected() {
+        return builder -> builder.clientOptions(ClientOptions.builder()
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .build());
+    }
+}
@@ -1,23 +1,34 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
 
+    @Value("${spring.redis.host}")
+    private String host;
+
+    @Value("${spring.redis.port}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient() {
 
-        // 配置
+        // 配置，和spring.redis用同一个Redis
         Config config = new Config();
 
         config.useSingleServer()
-                .setAddress("redis://192.168.100.150:6379")
-                .setPassword("563543");
+                .setAddress("redis://" + host + ":" + port)
+                .setPassword(StrUtil.emptyToNull(password));
 
         // 创建Redisson Client 对象
 
@@ -0,0 +1,202 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * 秒杀相关的可调参数，对应 application.yaml 中的 hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 每次XREADGROUP最多读取的订单条数，为1时退化为逐条处理
+     */
+    private int batchSize = 1;
+
+    /**
+     * 队列为空时XREADGROUP最长阻塞等待的时间
+     */
+    private Duration batchMaxWait = Duration.ofSeconds(2);
+
+    /**
+     * 每个节点处理订单的worker数，订单按userId分到各个worker，0表示取CPU核数
+     */
+    private int consumerThreads = 0;
+
+    /**
+     * 每个worker最多排队的批次数，满了之后reader会阻塞等待
+     */
+    private int consumerQueueCapacity = 64;
+
+    /**
+     * 本节点在消费者组中的名字，为空时使用 主机名-端口，多节点部署时必须各不相同
+     */
+    private String consumerName;
+
+    /**
+     * 新建秒杀券时把库存拆成几份，大于1时开启分片库存，库存和下单用户集合都按userId路由到分片。
+     * 分片只拆小了单个key、让卖完的分片可以在本地跳过；所有分片都在同一个Redis上，秒杀脚本还是串行执行，
+     * 不会提高单机的吞吐量。脚本还要写共用的stream.orders，不能在Redis Cluster上跨slot执行
+     */
+    private int stockShards = 1;
+
+    /**
+     * 新建秒杀券时下单用户的存储方式，建券时写进 seckill:time:{id}，之后改配置不影响已有的券
+     */
+    private BuyerLayout buyerLayout = BuyerLayout.SET;
+
+    /**
+     * 秒杀结束后下单用户继续保留的时间，到期自动删除
+     */
+    private Duration buyerRetention = Duration.ofDays(1);
+
+    /**
+     * 一次最多抢几张券
+     */
+    private int basketMaxSize = 10;
+
+    /**
+     * 本地售罄标记的有效期，过期后放一个请求去Redis确认，防止漏掉补库存的广播
+     */
+    private Duration soldOutTtl = Duration.ofSeconds(10);
+
+    /**
+     * 对账时每页从数据库读取的订单数，同时也是一次pipeline写入Redis的数量
+     */
+    private int reconcilePageSize = 5000;
+
+    /**
+     * 启动后多久做第一次对账（预热）
+     */
+    private Duration reconcileInitialDelay = Duration.ZERO;
+
+    /**
+     * 定时对账的间隔
+     */
+    private Duration reconcileInterval = Duration.ofMinutes(5);
+
+    /**
+     * 检查pending-list的间隔
+     */
+    private Duration pendingCheckInterval = Duration.ofSeconds(5);
+
+    /**
+     * 每次检查最多处理的pending消息数
+     */
+    private int pendingBatch = 100;
+
+    /**
+     * 消息空闲多久才认为消费者挂了或者处理失败，也是重试退避的起始时间
+     */
+    private Duration pendingMinIdle = Duration.ofSeconds(30);
+
+    /**
+     * 重试退避时间的上限
+     */
+    private Duration pendingMaxBackoff = Duration.ofMinutes(10);
+
+    /**
+     * 最大投递次数，超过后转入 stream.orders.dlq
+     */
+    private int maxDeliveries = 5;
+
+    /**
+     * 裁剪stream.orders的间隔，只删除整个消费者组都已经ACK的消息，为0时不裁剪
+     */
+    private Duration streamTrimInterval = Duration.ofMinutes(1);
+
+    /**
+     * 每次裁剪、归档的消息数
+     */
+    private int streamTrimBatch = 1000;
+
+    /**
+     * 裁剪下来的消息归档目录，为空时不归档直接删除
+     */
+    private String streamArchiveDir = "archive";
+
+    /**
+     * 是否开启本地订单日志：Redis不可用时把订单追加到本机的日志文件，Redis恢复后回放落库
+     */
+    private boolean journalEnabled = false;
+
+    /**
+     * 本地订单日志目录，每个节点必须是自己独占的目录
+     */
+    private String journalDir = "journal";
+
+    /**
+     * 单个日志文件（segment）的大小，写满后切换到下一个
+     */
+    private DataSize journalSegmentSize = DataSize.ofMegabytes(64);
+
+    /**
+     * 刷盘间隔，这段时间内的订单合并成一次fsync，下单请求最多等待这么久
+     */
+    private Duration journalFlushInterval = Duration.ofMillis(5);
+
+    /**
+     * 检查Redis是否恢复、回放日志的间隔
+     */
+    private Duration journalReplayInterval = Duration.ofSeconds(5);
+
+    /**
+     * 订单未支付自动取消的时间，取消后库存还给Redis和数据库，为0时不自动取消。
+     * 目前还没有支付接口，订单不会离开未支付状态，开启后每个订单到时间都会被取消，所以默认不开
+     */
+    private Duration unpaidTimeout = Duration.ZERO;
+
+    /**
+     * 超时定时器每个桶的时间宽度，截止时间在同一个桶里的订单放在同一个ZSET
+     */
+    private Duration unpaidTimeoutBucket = Duration.ofSeconds(10);
+
+    /**
+     * 检查到期订单的间隔
+     */
+    private Duration unpaidTimeoutPollInterval = Duration.ofSeconds(1);
+
+    /**
+     * 每次最多取消的订单数，一批订单一条UPDATE
+     */
+    private int unpaidTimeoutBatch = 500;
+
+    /**
+     * 取出的订单多久没处理完可以被重新取出，防止处理的节点挂掉后订单永远不取消
+     */
+    private Duration unpaidTimeoutLease = Duration.ofMinutes(1);
+
+    /**
+     * 订单落库方式
+     */
+    private PersistMode persistMode = PersistMode.LOCK;
+
+    public enum BuyerLayout {
+        /**
+         * 每个秒杀券一个SET，SADD/SISMEMBER，userId是任意值都可以
+         */
+        SET,
+        /**
+         * 以userId为偏移量的位图，SETBIT/GETBIT，userId是连续的数字时比SET省一到两个数量级的内存
+         */
+        BITMAP
+    }
+
+    public enum PersistMode {
+        /**
+         * 每个订单加Redisson锁，先查询再插入
+         */
+        LOCK,
+        /**
+         * 依赖唯一索引(user_id, voucher_id)，INSERT IGNORE按影响行数判断重复，不加锁
+         */
+        IDEMPOTENT
+    }
+}
@@ -0,0 +1,37 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存的运行情况，不在 /shop/** 下面，需要登录才能访问
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 店铺缓存的命中率：进程内缓存和Redis，以及布隆过滤器
+     */
+    @GetMapping("/shop/stats")
+    public Result queryShopCacheStats() {
+        return shopService.queryCacheStats();
+    }
+
+    /**
+     * 本节点当前的热点key，以及统计窗口内的访问次数
+     */
+    @GetMapping("/shop/hot")
+    public Result queryShopHotKeys() {
+        return shopService.queryHotKeys();
+    }
+}
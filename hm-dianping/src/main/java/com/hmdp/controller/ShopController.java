@@ -10,6 +10,7 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -44,10 +45,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -63,6 +62,16 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 批量查询商铺信息
+     * @param ids 商铺id，逗号分隔，最多100个
+     * @return 和ids一一对应的商铺列表，不存在的是null
+     */
+    @GetMapping("/batch")
+    public Result queryShopBatch(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryBatch(ids);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
@@ -23,6 +24,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -45,6 +49,19 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 按数据库预热、修复秒杀券在Redis中的库存和下单用户
+     * @param voucherId 优惠券id，不传则处理所有未结束的秒杀券
+     * @return 对账结果
+     */
+    @PostMapping("seckill/reconcile")
+    public Result reconcileSeckillVoucher(@RequestParam(value = "id", required = false) Long voucherId) {
+        if (voucherId == null) {
+            return Result.ok(seckillVoucherService.reconcileAll());
+        }
+        return Result.ok(seckillVoucherService.reconcile(voucherId));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
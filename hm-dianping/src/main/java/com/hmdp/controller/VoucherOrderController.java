@@ -3,12 +3,15 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -29,4 +32,34 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.setKillVoucher(voucherId);
     }
+
+    /**
+     * 一次抢多张秒杀券，只走一次秒杀脚本
+     * @param voucherIds 优惠券id，逗号分隔
+     * @param allOrNothing true 全部能抢到才下单，false 能抢到几张下几张
+     * @return 每张券的结果
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestParam("ids") List<Long> voucherIds,
+                                  @RequestParam(value = "allOrNothing", defaultValue = "true") Boolean allOrNothing) {
+        return voucherOrderService.setKillVouchers(voucherIds, allOrNothing);
+    }
+
+    /**
+     * 查询秒杀订单的处理结果：排队中、已落库或失败
+     * @param orderId 秒杀接口返回的订单id
+     * @return 订单状态
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 订单消费者的运行情况：pending数、重试次数、死信数
+     */
+    @GetMapping("consumer/stats")
+    public Result queryConsumerStats() {
+        return voucherOrderService.queryConsumerStats();
+    }
 }
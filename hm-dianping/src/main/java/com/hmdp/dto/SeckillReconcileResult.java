@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀券Redis和数据库对账的结果
+ */
+@Data
+public class SeckillReconcileResult {
+    private Long voucherId;
+    /**
+     * 数据库中的库存和下单用户数
+     */
+    private Integer dbStock;
+    private Long dbBuyers;
+    /**
+     * 修复前Redis中的库存，为null表示key丢失
+     */
+    private Long redisStock;
+    private Long redisBuyers;
+    /**
+     * Redis中缺失、这次补回去的下单用户数
+     */
+    private Long missingBuyers;
+    /**
+     * 按数据库推算出的Redis库存
+     */
+    private Long expectedStock;
+
+    public boolean isDrift() {
+        return redisStock == null || !redisStock.equals(expectedStock) || missingBuyers > 0;
+    }
+}
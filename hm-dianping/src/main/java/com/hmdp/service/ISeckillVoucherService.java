@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.SeckillReconcileResult;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务类
@@ -13,4 +16,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀开始、结束时间缓存到Redis，供秒杀脚本判断
+     */
+    void saveSeckillTimeToRedis(SeckillVoucher voucher);
+
+    /**
+     * 对所有未结束的秒杀券做Redis预热和对账
+     */
+    List<SeckillReconcileResult> reconcileAll();
+
+    /**
+     * 按数据库修复单个秒杀券在Redis中的库存和下单用户
+     */
+    SeckillReconcileResult reconcile(Long voucherId);
 }
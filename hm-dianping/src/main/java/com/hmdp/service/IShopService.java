@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,25 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    /**
+     * 新增店铺，同时加入布隆过滤器
+     */
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
+
+    /**
+     * 批量查询店铺，结果和ids一一对应，不存在的是null
+     */
+    Result queryBatch(List<Long> ids);
+
+    /**
+     * 店铺缓存各层的命中率，以及布隆过滤器的误判率和拦截数
+     */
+    Result queryCacheStats();
+
+    /**
+     * 本节点当前识别出的热点key
+     */
+    Result queryHotKeys();
 }
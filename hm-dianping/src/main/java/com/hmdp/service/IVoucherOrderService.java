@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,6 +18,24 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result setKillVoucher(Long voucherId);
 
+    /**
+     * 一次执行秒杀脚本抢多张券
+     * @param allOrNothing true 全部能抢到才下单，false 能抢到几张下几张
+     */
+    Result setKillVouchers(List<Long> voucherIds, boolean allOrNothing);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消还没支付的订单，并把库存还给数据库
+     * @return 实际取消的订单，已经支付或者已经取消的不在其中
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result queryConsumerStats();
 }
 
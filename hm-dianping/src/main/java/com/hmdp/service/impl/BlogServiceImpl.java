@@ -14,6 +14,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -54,6 +55,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Autowired
     private FollowServiceImpl followServiceImpl;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -80,6 +84,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogById(Long id) {
+        // 0.布隆过滤器判断不存在的，不用再查数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("笔记不存在");
+        }
         // 1.查询blog
         Blog blog = getById(id);
         if (blog == null) {
@@ -188,6 +196,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("笔记保存失败");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
 
         // 先得查询到笔记作者的所有粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
@@ -1,10 +1,38 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.SeckillReconcileResult;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutMarker;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -14,7 +42,227 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Lazy
+    @Resource
+    private ISeckillVoucherService proxy;
+
+    private static final DefaultRedisScript<List> RECONCILE_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("seckill_reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * 启动时预热一次，之后定时对账，Redis主从切换或者被清空后能自动恢复
+     */
+    @Scheduled(initialDelayString = "#{@seckillProperties.reconcileInitialDelay.toMillis()}",
+            fixedDelayString = "#{@seckillProperties.reconcileInterval.toMillis()}")
+    public void scheduledReconcile() {
+        reconcileAll();
+    }
+
+    @Override
+    public void saveSeckillTimeToRedis(SeckillVoucher voucher) {
+        String key = RedisConstants.SECKILL_TIME_KEY + voucher.getVoucherId();
+        long end = toEpochMilli(voucher.getEndTime());
+        Map<String, String> window = new HashMap<>(3);
+        window.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        window.put("end", String.valueOf(end));
+        // 下单用户在秒杀结束后保留一段时间再过期
+        window.put("expireAt", String.valueOf(end + seckillProperties.getBuyerRetention().toMillis()));
+        stringRedisTemplate.opsForHash().putAll(key, window);
+        // 存储方式只在第一次写入，券的整个生命周期内不能变
+        stringRedisTemplate.opsForHash().putIfAbsent(key, "layout",
+                seckillProperties.getBuyerLayout().name().toLowerCase());
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public List<SeckillReconcileResult> reconcileAll() {
+        // 多个节点只需要一个在跑
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return Collections.emptyList();
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            List<SeckillVoucher> vouchers = query().select("voucher_id")
+                    .gt("end_time", LocalDateTime.now())
+                    .list();
+            List<SeckillReconcileResult> results = new ArrayList<>(vouchers.size());
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    results.add(proxy.reconcile(voucher.getVoucherId()));
+                } catch (Exception e) {
+                    log.error("秒杀券对账失败，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+            long drift = results.stream().filter(SeckillReconcileResult::isDrift).count();
+            log.info("秒杀券对账完成，共{}个，不一致{}个，耗时{}ms", results.size(), drift, System.currentTimeMillis() - begin);
+            return results;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在同一个事务里读库存和下单用户，保证两者是同一个快照，推算出来的Redis库存才准
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public SeckillReconcileResult reconcile(Long voucherId) {
+        // 1. 查询数据库库存
+        SeckillVoucher voucher = getById(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+
+        // 1.1 秒杀时间没什么可比的，直接以数据库为准覆盖
+        saveSeckillTimeToRedis(voucher);
+
+        // 2. 确定Redis中的key，分片券的用户集合按userId分到各个分片
+        String shardValue = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        int shards = shardValue == null ? 1 : Integer.parseInt(shardValue);
+        List<String> keys = new ArrayList<>(shards * 3);
+        if (shards == 1) {
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_BUYERS_KEY + voucherId);
+        } else {
+            for (String prefix : new String[]{RedisConstants.SECKILL_STOCK_KEY,
+                    RedisConstants.SECKILL_ORDER_KEY, RedisConstants.SECKILL_BUYERS_KEY}) {
+                for (int i = 0; i < shards; i++) {
+                    keys.add(prefix + voucherId + ":" + i);
+                }
+            }
+        }
+        List<String> buyerKeys = keys.subList(shards, shards * 3);
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_TIME_KEY + voucherId,
+                Arrays.asList("layout", "expireAt"));
+        boolean bitmap = "bitmap".equals(meta.get(0));
+        long expireAt = Long.parseLong((String) meta.get(1));
+
+        // 3. 按主键分页读出下单用户，每页用pipeline补到Redis集合里，SADD的返回值就是缺失的用户数
+        // 超时取消的订单也算：唯一索引(user_id, voucher_id)不允许再下单，Redis里也保留这些用户
+        long dbBuyers = 0;
+        long missingBuyers = 0;
+        long lastId = 0;
+        int pageSize = seckillProperties.getReconcilePageSize();
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + pageSize));
+            if (orders.isEmpty()) {
+                break;
+            }
+            dbBuyers += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+            missingBuyers += addBuyers(buyerKeys, bitmap, orders);
+            if (orders.size() < pageSize) {
+                break;
+            }
+        }
+
+        // 3.1 老数据的下单用户没有过期时间，顺便补上
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : buyerKeys) {
+                connection.keyCommands().pExpireAt(key.getBytes(StandardCharsets.UTF_8), expireAt);
+            }
+            return null;
+        });
+
+        // 4. 执行对账脚本，原子地比较并修复库存
+        List<?> r = stringRedisTemplate.execute(RECONCILE_SCRIPT, keys,
+                String.valueOf(shards), voucher.getStock().toString(), String.valueOf(dbBuyers));
+
+        SeckillReconcileResult result = new SeckillReconcileResult();
+        result.setVoucherId(voucherId);
+        result.setDbStock(voucher.getStock());
+        result.setDbBuyers(dbBuyers);
+        long redisStock = ((Number) r.get(0)).longValue();
+        result.setRedisStock(redisStock < 0 ? null : redisStock);
+        result.setRedisBuyers(((Number) r.get(1)).longValue());
+        result.setExpectedStock(((Number) r.get(2)).longValue());
+        result.setMissingBuyers(missingBuyers);
+
+        if (result.isDrift()) {
+            log.warn("秒杀券Redis与数据库不一致，已修复：{}", result);
+            if (result.getExpectedStock() > 0) {
+                // 库存补回来了，清掉各节点的售罄标记
+                soldOutMarker.clear(voucherId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 把数据库里的下单用户补到Redis，buyerKeys前一半是各分片的集合，后一半是各分片的位图
+     * @return 原来Redis中缺失的用户数
+     */
+    private long addBuyers(List<String> buyerKeys, boolean bitmap, List<VoucherOrder> orders) {
+        int shards = buyerKeys.size() / 2;
+        Map<Integer, List<byte[]>> members = new HashMap<>();
+        List<long[]> bits = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            long userId = order.getUserId();
+            int shard = (int) (userId % shards);
+            // 和秒杀脚本一致：位图偏移量是 userId / 分片数，超出上限的用户仍然放在集合里
+            long offset = userId / shards;
+            if (bitmap && offset < RedisConstants.SECKILL_BUYER_BITMAP_LIMIT) {
+                bits.add(new long[]{shard, offset});
+            } else {
+                members.computeIfAbsent(shard, k -> new ArrayList<>())
+                        .add(order.getUserId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        List<Object> added = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            members.forEach((shard, values) -> sAdd(connection, buyerKeys.get(shard), values));
+            for (long[] bit : bits) {
+                connection.stringCommands().setBit(
+                        buyerKeys.get(shards + (int) bit[0]).getBytes(StandardCharsets.UTF_8), bit[1], true);
+            }
+            return null;
+        });
+        // SADD返回新加入的个数，SETBIT返回原来的值，原来是0说明缺失
+        long count = 0;
+        for (Object n : added) {
+            if (n instanceof Number) {
+                count += ((Number) n).longValue();
+            } else if (Boolean.FALSE.equals(n)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void sAdd(RedisConnection connection, String key, List<byte[]> values) {
+        connection.setCommands().sAdd(key.getBytes(StandardCharsets.UTF_8), values.toArray(new byte[0][]));
+    }
 }
@@ -1,27 +1,29 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.cache.CacheManager;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -35,24 +37,34 @@ import java.util.concurrent.TimeUnit;
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Resource
-    private CacheClient cacheClient;
+    private IdBloomFilter idBloomFilter;
 
     @Override
     public Result queryById(Long id) {
+        // 布隆过滤器判断不存在的，不用再查Redis和数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
+            return Result.fail("店铺不存在！");
+        }
+
         // 缓存穿透
 //        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY
 //        , id, Shop.class, this::getById,
 //                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-        // 使用互斥锁解决缓存击穿
-        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
-                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 互斥锁解决缓存击穿，本节点的并发未命中合并成一次重建
+//        Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+//                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 逻辑过期解决缓存击穿
-//        Shop shop = queryWithLogicalExpire(id);
+//        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+//                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 按访问频率自动选择：普通店铺按缓存穿透读，热点店铺改用逻辑过期 + 进程内缓存
+        Shop shop = cacheClient.query(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) {
             return Result.fail("店铺不存在！");
         }
@@ -61,6 +73,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 加入布隆过滤器，其他节点通过Redis频道同步
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -74,88 +95,55 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id不能为空！");
         }
         String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 2. 删除缓存
-        stringRedisTemplate.delete(key);
+        // 2. 提交后删除缓存，并通知各节点删除进程内缓存
+        cacheClient.invalidate(key);
 
         return Result.ok();
     }
 
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-
-        return BooleanUtil.isTrue(flag);
+    @Override
+    public Result queryBatch(List<Long> ids) {
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个店铺！");
+        }
+        // 1. 布隆过滤器判断不存在的直接是null，剩下的批量查缓存
+        List<Long> candidates = ids.stream()
+                .filter(id -> id != null && idBloomFilter.mightContain(IdBloomFilter.SHOP, id))
+                .collect(Collectors.toList());
+        List<Shop> shops = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, candidates, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 2. 按请求的顺序返回
+        Map<Long, Shop> byId = new HashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            byId.put(candidates.get(i), shops.get(i));
+        }
+        List<Shop> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            result.add(byId.get(id));
+        }
+        return Result.ok(result);
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public Result queryCacheStats() {
+        Map<String, Object> stats = cacheClient.stats();
+        stats.put("bloom", idBloomFilter.stats());
+        return Result.ok(stats);
     }
 
-
-    public Shop queryWithMutex (Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1. 先去Redis中查一下商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2. 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 存在，就直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判断命中的是否是空值
-        // 我tm知道这个啥意思了，如果是空字符串，这个东西也就是isBlank成立，但是不是Null
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 实现缓存重建
-        String lockKey = RedisConstants.CACHE_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            // 4.1. 获取互斥锁
-            boolean isLock = tryLock(lockKey);
-
-            // 如果失败，则休眠，然后重试
-            if (!isLock) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            // 如果成功， 根据ID查询数据库
-            shop = getById(id);
-
-            // 模拟重建的延时
-            Thread.sleep(200);
-
-            // 5. 数据库中不存在信息，返回错误
-            if (shop == null) {
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-
-            // 6. 数据库中如果存在，就写入Redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 释放互斥锁
-            unlock(lockKey);
-        }
-        // 7. 直接返回
-        return shop;
+    @Override
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.hotKeys());
     }
 
     public void saveShopToRedis (Long id, Long expireSeconds) {
         // 1. 查询店铺数据
         Shop shop = getById(id);
 
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3. 写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
-
+        // 2. 带上逻辑过期时间写入Redis，编码和 CacheClient 读取时一致
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
 }
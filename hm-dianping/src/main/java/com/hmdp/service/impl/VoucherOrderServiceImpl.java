@@ -1,34 +1,74 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.OrderArchive;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutMarker;
 import com.hmdp.utils.UserHolder;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnectionCommands;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -46,7 +86,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
@@ -54,36 +94,243 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @Resource
+    private OrderJournal orderJournal;
+
+    @Resource
+    private OrderArchive orderArchive;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    /**
+     * 同一个脚本，传了下单方式时返回每张券的结果码
+     */
+    private static final DefaultRedisScript<List> SECKILL_BASKET_SCRIPT;
+
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        SECKILL_BASKET_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BASKET_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("seckill.lua"));
+        SECKILL_BASKET_SCRIPT.setResultType(List.class);
     }
 
-    private static ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final DefaultRedisScript<List> ORDER_TIMEOUT_POLL_SCRIPT;
+
+    private static final DefaultRedisScript<Long> ORDER_TIMEOUT_ACK_SCRIPT;
+
+    static {
+        ORDER_TIMEOUT_POLL_SCRIPT = new DefaultRedisScript<>();
+        ORDER_TIMEOUT_POLL_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("order_timeout_poll.lua"));
+        ORDER_TIMEOUT_POLL_SCRIPT.setResultType(List.class);
+
+        ORDER_TIMEOUT_ACK_SCRIPT = new DefaultRedisScript<>();
+        ORDER_TIMEOUT_ACK_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("order_timeout_ack.lua"));
+        ORDER_TIMEOUT_ACK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * MEMORY USAGE，只用于统计stream占用的内存
+     */
+    private static final DefaultRedisScript<Long> MEMORY_USAGE_SCRIPT =
+            new DefaultRedisScript<>("return redis.call('memory', 'usage', KEYS[1])", Long.class);
+
+    private static final String QUEUE_NAME = "stream.orders";
+
+    private static final String GROUP_NAME = "g1";
+
+    private static final String DLQ_NAME = "stream.orders.dlq";
+
+    /**
+     * 订单状态：已落库、失败、超时取消，排队中（QUEUED）由秒杀脚本写入
+     */
+    private static final String ORDER_PERSISTED = "PERSISTED";
+    private static final String ORDER_FAILED = "FAILED";
+    private static final String ORDER_CANCELLED = "CANCELLED";
+
+    /**
+     * tb_voucher_order.status：1 未支付，4 已取消
+     */
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
+
+    /**
+     * 读取stream.orders的线程，每个节点一个，拿到的消息按userId分发给下面的worker
+     */
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("seckill-order-reader-", false));
+
+    /**
+     * 按userId分区的worker，每个都是单线程，保证同一个用户的订单按顺序处理
+     */
+    private ExecutorService[] orderWorkers;
+
+    /**
+     * 当前节点在消费者组里的名字，默认是 主机名-端口
+     */
+    private String consumerName;
+
+    /**
+     * 定时认领、重试pending-list中的消息
+     */
+    private static final ScheduledExecutorService PENDING_RECOVERY_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-order-recovery-", false));
+
+    /**
+     * 定时取消超时未支付的订单
+     */
+    private static final ScheduledExecutorService ORDER_TIMEOUT_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-order-timeout-", false));
+
+    private volatile boolean running = true;
+
+    /**
+     * voucherId -> 库存分片数
+     */
+    private final Map<Long, Integer> stockShards = new ConcurrentHashMap<>();
+
+    /**
+     * Redis不可用期间每张券还能写入本地日志的订单数和秒杀时间，第一次写日志时从数据库读，回放完清空
+     */
+    private final Map<Long, JournalQuota> journalQuotas = new ConcurrentHashMap<>();
+
+    /**
+     * 已经交给本节点worker、还没处理完的消息id。worker队列满的时候消息可能排队超过pendingMinIdle，
+     * PendingRecoveryTask不能把它们当成失败的消息认领，否则同一个用户的订单会被两个线程处理
+     */
+    private final Set<RecordId> dispatchedIds = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong recoveredCount = new AtomicLong();
+
+    private final AtomicLong deadLetterCount = new AtomicLong();
+
+    private final AtomicLong journaledCount = new AtomicLong();
 
+    private final AtomicLong replayedCount = new AtomicLong();
+
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    private final AtomicLong trimmedCount = new AtomicLong();
+
+    @Value("${server.port:8080}")
+    private int serverPort;
 
     @PostConstruct
     private void init() {
+        // 1. 启动时确保消费者组存在
+        createGroupIfAbsent();
+
+        // 2. 生成本节点唯一的消费者名称
+        consumerName = StrUtil.isNotBlank(seckillProperties.getConsumerName())
+                ? seckillProperties.getConsumerName()
+                : NetUtil.getLocalHostName() + "-" + serverPort;
+
+        // 3. 创建分区worker
+        int workers = seckillProperties.getConsumerThreads() > 0
+                ? seckillProperties.getConsumerThreads()
+                : Runtime.getRuntime().availableProcessors();
+        orderWorkers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            orderWorkers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(seckillProperties.getConsumerQueueCapacity()),
+                    ThreadUtil.newNamedThreadFactory("seckill-order-worker-" + i + "-", false),
+                    (task, executor) -> {
+                        // 队列满了就阻塞reader，形成背压，不能让reader自己执行，否则会打乱分区内的顺序
+                        try {
+                            executor.getQueue().put(task);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    });
+        }
+        log.info("秒杀订单消费者启动，consumer={}, workers={}", consumerName, workers);
+
+        // 4. 启动reader之前记下消费者组已经投递到的位置，本节点名下不超过它的pending消息是上次没处理完的，
+        //    之后reader新拿到的消息都在它后面，不会被当成上次遗留的立即认领
+        RecordId startupDelivered = lastDeliveredId();
         SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(new PendingRecoveryTask(startupDelivered),
+                0, seckillProperties.getPendingCheckInterval().toMillis(), TimeUnit.MILLISECONDS);
+        if (orderJournal.isEnabled()) {
+            PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(new JournalReplayTask(),
+                    0, seckillProperties.getJournalReplayInterval().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (!seckillProperties.getStreamTrimInterval().isZero()) {
+            PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(new StreamTrimTask(),
+                    seckillProperties.getStreamTrimInterval().toMillis(),
+                    seckillProperties.getStreamTrimInterval().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (unpaidTimeoutEnabled()) {
+            ORDER_TIMEOUT_EXECUTOR.scheduleWithFixedDelay(new OrderTimeoutTask(),
+                    0, seckillProperties.getUnpaidTimeoutPollInterval().toMillis(), TimeUnit.MILLISECONDS);
+        }
     }
 
-    private class VoucherOrderHandler implements Runnable {
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 1. 先停reader，最多等一个阻塞读取的周期
+        running = false;
+        PENDING_RECOVERY_EXECUTOR.shutdown();
+        ORDER_TIMEOUT_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.awaitTermination(seckillProperties.getBatchMaxWait().toMillis() + 1000, TimeUnit.MILLISECONDS);
+
+        // 2. 再等worker把已经分发的订单处理完，没处理完的留在pending-list里，下次启动再处理
+        for (ExecutorService worker : orderWorkers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : orderWorkers) {
+            if (!worker.awaitTermination(10, TimeUnit.SECONDS)) {
+                worker.shutdownNow();
+            }
+        }
+    }
 
-        String queueName = "stream.orders";
+    private RecordId lastDeliveredId() {
+        return stringRedisTemplate.opsForStream().groups(QUEUE_NAME).stream()
+                .filter(group -> GROUP_NAME.equals(group.groupName()))
+                .map(group -> RecordId.of(group.lastDeliveredId()))
+                .findFirst()
+                .orElse(RecordId.of(0, 0));
+    }
+
+    private void createGroupIfAbsent() {
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(QUEUE_NAME.getBytes(StandardCharsets.UTF_8), GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 组已经存在会返回BUSYGROUP，直接忽略
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private class VoucherOrderHandler implements Runnable {
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
                     // 1. 获取消息队列中的信息
-
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty()
+                                    .count(Math.max(1, seckillProperties.getBatchSize()))
+                                    .block(seckillProperties.getBatchMaxWait()),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
 
                     // 2 先判断消息获取是否成功
@@ -92,66 +339,443 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                    // 3. 按userId分区，交给对应的worker
+                    dispatch(list);
 
-                    // 如果获取成功，可以下单！
-                    // 3. 创建订单
-                    handleVoucherOrder(voucherOrder);
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("读取订单消息异常", e);
+                    // Redis故障时不要空转刷日志；Redis数据丢了的话重新建消费者组
+                    ThreadUtil.sleep(1000);
+                    if (StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "NOGROUP")) {
+                        try {
+                            createGroupIfAbsent();
+                        } catch (Exception ex) {
+                            log.error("重建消费者组失败", ex);
+                        }
+                    }
+                }
 
-                    // 4. 做ACK确认 SACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+            }
+        }
 
-                } catch (Exception e) {
-//                    throw new RuntimeException(e);
-                    log.error("处理订单异常", e);
+        private void dispatch(List<MapRecord<String, Object, Object>> list) {
+            Map<Integer, List<MapRecord<String, Object, Object>>> partitions = new HashMap<>();
+            for (MapRecord<String, Object, Object> record : list) {
+                long userId = Long.parseLong(record.getValue().get("userId").toString());
+                int partition = (int) Math.floorMod(userId, (long) orderWorkers.length);
+                partitions.computeIfAbsent(partition, k -> new ArrayList<>()).add(record);
+            }
+            partitions.forEach((partition, records) -> {
+                records.forEach(record -> dispatchedIds.add(record.getId()));
+                orderWorkers[partition].execute(() -> handleRecords(records));
+            });
+        }
+
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            try {
+                doHandleRecords(records);
+            } finally {
+                records.forEach(record -> dispatchedIds.remove(record.getId()));
+            }
+        }
 
-                    // 去pendingList中处理异常的消息
-                    handlePendingList();
+        private void doHandleRecords(List<MapRecord<String, Object, Object>> records) {
+            if (records.size() > 1) {
+                try {
+                    // 批量模式：整批校验、一次插入、一次ACK
+                    handleVoucherOrderBatch(records);
+                    return;
+                } catch (Exception e) {
+                    log.error("批量处理订单异常，改为逐条处理", e);
                 }
+            }
+            // 逐条处理，失败的消息留在pending-list中，由PendingRecoveryTask退避重试
+            for (MapRecord<String, Object, Object> record : records) {
+                try {
+                    handleRecord(record);
+                } catch (Exception e) {
+                    log.error("处理订单异常，recordId={}", record.getId(), e);
+                }
+            }
+        }
 
+        private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> list) {
+            // 1. 解析消息中的订单信息
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            RecordId[] recordIds = new RecordId[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> record = list.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
             }
+
+            // 2. 整批创建订单
+            proxy.createVoucherOrderBatch(voucherOrders);
+
+            // 3. 一次性ACK整批消息
+            stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, recordIds);
         }
+    }
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1. 获取pending-list队列中的信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
+    /**
+     * 定时检查整个消费者组的pending-list，认领已经挂掉或者处理失败的消费者手里的消息。
+     * 失败的消息按投递次数指数退避重试，超过最大投递次数的转到死信队列。
+     */
+    private class PendingRecoveryTask implements Runnable {
 
-                    // 2 先判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 2.1 如果获取失败，说明没有消息，直接结束!
+        /**
+         * 启动时消费者组已经投递到的位置，本节点名下不超过它的pending消息一定是上次没处理完的，不需要等待
+         */
+        private final RecordId startupDelivered;
+
+        /**
+         * 第一遍完整扫描pending-list之前为true，之后上次遗留的消息也按退避时间重试
+         */
+        private boolean firstPass = true;
+
+        private PendingRecoveryTask(RecordId startupDelivered) {
+            this.startupDelivered = startupDelivered;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // 1. 分页获取整个消费者组pending-list中的消息，包括其他消费者的；
+                //    前面还在退避的消息不会挡住后面的
+                int batch = Math.max(1, seckillProperties.getPendingBatch());
+                Range<String> range = Range.unbounded();
+                while (running) {
+                    PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(
+                            QUEUE_NAME, GROUP_NAME, range, batch);
+                    for (PendingMessage message : pendingMessages) {
+                        if (!running) {
+                            return;
+                        }
+                        recover(message);
+                    }
+                    if (pendingMessages.size() < batch) {
                         break;
                     }
+                    // 下一页从最后一条的下一个id开始
+                    RecordId last = pendingMessages.get(pendingMessages.size() - 1).getId();
+                    range = Range.rightUnbounded(Range.Bound.inclusive(
+                            RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue()));
+                }
+                firstPass = false;
+            } catch (Exception e) {
+                log.error("处理pending-list异常", e);
+            }
+        }
+
+        private void recover(PendingMessage message) {
+            // 2. 还在本节点worker队列里排队的消息不认领，空闲时间从投递开始算会越来越长，
+            //    定期重新认领给自己把空闲时间清零，避免被其他节点认领
+            long deliveries = message.getTotalDeliveryCount();
+            if (dispatchedIds.contains(message.getId())) {
+                if (consumerName.equals(message.getConsumerName())
+                        && message.getElapsedTimeSinceLastDelivery().compareTo(
+                        seckillProperties.getPendingMinIdle().dividedBy(2)) >= 0) {
+                    touch(message.getId(), deliveries);
+                }
+                return;
+            }
 
-                    // 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+            // 3. 空闲时间还没到退避时间的跳过，正在被其他消费者处理的消息空闲时间也很短
+            Duration minIdle = isOwnStale(message) ? Duration.ZERO : backoff(deliveries);
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                return;
+            }
 
-                    // 如果获取成功，可以下单！
-                    // 3. 创建订单
-                    handleVoucherOrder(voucherOrder);
+            // 4. 认领消息，带上minIdle，多个节点同时认领时只有一个能成功
+            MapRecord<String, Object, Object> record = claim(message.getId(), minIdle);
+            if (record == null) {
+                return;
+            }
 
-                    // 4. 做ACK确认 SACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+            // 5. 投递次数太多，转到死信队列
+            if (deliveries >= seckillProperties.getMaxDeliveries()) {
+                deadLetter(record, deliveries);
+                return;
+            }
 
-                } catch (Exception e) {
-//                    throw new RuntimeException(e);
-                    log.error("处理pending-list异常", e);
+            // 6. 重试
+            retryCount.incrementAndGet();
+            try {
+                handleRecord(record);
+                recoveredCount.incrementAndGet();
+            } catch (Exception e) {
+                log.error("重试订单失败，recordId={}, deliveries={}", record.getId(), deliveries + 1, e);
+            }
+        }
+
+        /**
+         * 本节点上次运行时没处理完的消息：启动后的第一遍扫描里，本节点名下、id不超过启动时投递位置的
+         */
+        private boolean isOwnStale(PendingMessage message) {
+            if (!firstPass || !consumerName.equals(message.getConsumerName())) {
+                return false;
+            }
+            RecordId id = message.getId();
+            return id.getTimestamp() < startupDelivered.getTimestamp()
+                    || id.getTimestamp().equals(startupDelivered.getTimestamp())
+                    && id.getSequence() <= startupDelivered.getSequence();
+        }
+
+        private Duration backoff(long deliveries) {
+            // minIdle * 2^(deliveries-1)，最大不超过pendingMaxBackoff
+            Duration base = seckillProperties.getPendingMinIdle();
+            long shift = Math.min(Math.max(deliveries - 1, 0), 20);
+            Duration backoff = base.multipliedBy(1L << shift);
+            return backoff.compareTo(seckillProperties.getPendingMaxBackoff()) > 0
+                    ? seckillProperties.getPendingMaxBackoff() : backoff;
+        }
+
+        private MapRecord<String, Object, Object> claim(RecordId id, Duration minIdle) {
+            List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(QUEUE_NAME.getBytes(StandardCharsets.UTF_8), GROUP_NAME,
+                            consumerName, RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+            if (records == null || records.isEmpty()) {
+                return null;
+            }
+            ByteRecord record = records.get(0);
+            Map<Object, Object> values = new HashMap<>();
+            record.getValue().forEach((k, v) ->
+                    values.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            return MapRecord.create(QUEUE_NAME, values).withId(record.getId());
+        }
+
+        /**
+         * 重新认领给自己：只把空闲时间清零，投递次数保持不变，不影响退避和死信判断
+         */
+        private void touch(RecordId id, long deliveries) {
+            stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(QUEUE_NAME.getBytes(StandardCharsets.UTF_8), GROUP_NAME,
+                            consumerName, RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(id)
+                                    .idle(Duration.ZERO).retryCount(deliveries)));
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record, long deliveries) {
+            Map<Object, Object> values = new HashMap<>(record.getValue());
+            values.put("sourceId", record.getId().getValue());
+            values.put("deliveries", String.valueOf(deliveries));
+            stringRedisTemplate.opsForStream().add(MapRecord.create(DLQ_NAME, values));
+            stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, record.getId());
+            deadLetterCount.incrementAndGet();
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_FAILED, "系统繁忙，请稍后再试");
+            log.error("订单消息投递{}次仍然失败，转入死信队列：{}", deliveries, record);
+        }
+    }
+
+    /**
+     * 定时裁剪stream.orders：XADD没有带MAXLEN，已经处理完的消息会一直留在Redis里。
+     * 只删除消费者组已经投递过、并且比pending-list中最小的id还小的消息，这些消息都已经ACK，
+     * 删除前先归档到本地文件。多个节点只需要一个在裁剪
+     */
+    private class StreamTrimTask implements Runnable {
+
+        @Override
+        public void run() {
+            // 加锁、解锁在Redis不可用时也会抛异常，抛出去的话定时任务就不会再执行了
+            try {
+                trim();
+            } catch (Exception e) {
+                log.error("裁剪stream.orders异常", e);
+            }
+        }
+
+        private void trim() throws IOException {
+            RLock lock = redissonClient.getLock("lock:stream:orders:trim");
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                int batch = seckillProperties.getStreamTrimBatch();
+                long trimmed = 0;
+                int n;
+                // 一批删满了说明可能还有，接着删
+                do {
+                    n = trimBatch(batch);
+                    trimmed += n;
+                } while (running && n >= batch);
+                if (trimmed > 0) {
+                    log.info("裁剪stream.orders消息{}条", trimmed);
                 }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int trimBatch(int batch) throws IOException {
+            // 1. 消费者组已经投递到的位置，之后的消息还没被读过
+            // 必须先读投递位置再读pending-list，反过来的话中间新投递、还没ACK的消息会被误删
+            String lastDelivered = stringRedisTemplate.opsForStream().groups(QUEUE_NAME).stream()
+                    .filter(group -> GROUP_NAME.equals(group.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+            if (lastDelivered == null || "0-0".equals(lastDelivered)) {
+                return 0;
+            }
+
+            // 2. 有pending消息时只能删到最小的pending id之前，没有时可以删到投递位置
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(QUEUE_NAME, GROUP_NAME);
+            Range.Bound<String> upper = summary != null && summary.getTotalPendingMessages() > 0
+                    ? Range.Bound.exclusive(summary.minMessageId())
+                    : Range.Bound.inclusive(lastDelivered);
+
+            // 3. 从头取一批，归档后删除
+            // Redis 6.2之前XTRIM不支持MINID，按id删除，从头连续删除整个节点的内存都会释放
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(QUEUE_NAME,
+                    Range.of(Range.Bound.unbounded(), upper), RedisZSetCommands.Limit.limit().count(batch));
+            if (records == null || records.isEmpty()) {
+                return 0;
+            }
+            orderArchive.archive(records);
+            RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            stringRedisTemplate.opsForStream().delete(QUEUE_NAME, ids);
+            trimmedCount.addAndGet(ids.length);
+            return ids.length;
+        }
+    }
+
+    /**
+     * Redis恢复后回放本地订单日志：逐条落库，回放完一个segment删一个，
+     * 最后对账把这些订单同步到Redis的库存和下单用户里。中途失败的segment下次整个重放，落库本身是幂等的
+     */
+    private class JournalReplayTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                // 1. Redis还没恢复就等下一次
+                if (!redisAvailable()) {
+                    return;
+                }
+
+                // 2. 封存当前的segment，之后的订单写到新的segment
+                List<Path> segments = orderJournal.seal();
+                if (segments.isEmpty()) {
+                    journalQuotas.clear();
+                    return;
+                }
+
+                // 3. 逐个segment回放
+                Map<Long, SeckillVoucher> vouchers = new HashMap<>();
+                for (Path segment : segments) {
+                    List<VoucherOrder> orders = orderJournal.read(segment);
+                    for (VoucherOrder voucherOrder : orders) {
+                        if (!running) {
+                            return;
+                        }
+                        replay(voucherOrder, vouchers);
+                    }
+                    orderJournal.complete(segment, orders);
+                    replayedCount.addAndGet(orders.size());
+                    log.info("本地订单日志回放完成，segment={}, orders={}", segment.getFileName(), orders.size());
+                }
+
+                // 4. 对账，日志里的订单没经过Redis，库存和下单用户要按数据库补上
+                for (Long voucherId : vouchers.keySet()) {
+                    seckillVoucherService.reconcile(voucherId);
+                }
+
+                // 5. 下次Redis不可用时按数据库里最新的库存重新计算
+                journalQuotas.clear();
+            } catch (Exception e) {
+                log.error("回放本地订单日志异常", e);
+            }
+        }
+
+        private void replay(VoucherOrder voucherOrder, Map<Long, SeckillVoucher> vouchers) {
+            // 日志里的订单没有经过秒杀脚本，先按下单时间补一次秒杀时间的校验
+            SeckillVoucher voucher = vouchers.computeIfAbsent(voucherOrder.getVoucherId(), seckillVoucherService::getById);
+            if (voucher == null || voucherOrder.getCreateTime().isBefore(voucher.getBeginTime())
+                    || voucherOrder.getCreateTime().isAfter(voucher.getEndTime())) {
+                updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_FAILED, "不在秒杀时间内");
+                return;
+            }
+            // 库存和一人一单交给落库时的数据库校验
+            handleVoucherOrder(voucherOrder);
+        }
+
+        private boolean redisAvailable() {
+            try {
+                return "PONG".equals(stringRedisTemplate.execute(RedisConnectionCommands::ping));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 定时取消超时未支付的订单：从定时桶里取出到期的订单，数据库里一条UPDATE取消、按优惠券合并归还库存，
+     * 提交后再用一个脚本原子地把库存还给Redis并删除定时。提交后到脚本执行前挂掉的话，
+     * 订单在租期后会被重新取出，数据库里已经不是未支付，只会删除定时，Redis少还的库存由定时对账补上
+     */
+    private class OrderTimeoutTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                int batch = seckillProperties.getUnpaidTimeoutBatch();
+                int n;
+                // 一批取满了说明可能还有，接着取
+                do {
+                    n = cancelBatch();
+                } while (running && n >= batch);
+            } catch (Exception e) {
+                log.error("取消超时订单异常", e);
+            }
+        }
+
+        private int cancelBatch() {
+            // 1. 取出到期的订单
+            List<?> polled = stringRedisTemplate.execute(ORDER_TIMEOUT_POLL_SCRIPT,
+                    Collections.singletonList(RedisConstants.ORDER_TIMEOUT_BUCKETS_KEY),
+                    String.valueOf(System.currentTimeMillis()),
+                    String.valueOf(seckillProperties.getUnpaidTimeoutBucket().toMillis()),
+                    String.valueOf(seckillProperties.getUnpaidTimeoutBatch()),
+                    String.valueOf(seckillProperties.getUnpaidTimeoutLease().toMillis()),
+                    "1000");
+            if (polled == null || polled.isEmpty()) {
+                return 0;
+            }
+            List<Long> orderIds = new ArrayList<>(polled.size() / 2);
+            for (int i = 1; i < polled.size(); i += 2) {
+                orderIds.add(Long.valueOf(polled.get(i).toString()));
+            }
+
+            // 2. 数据库里取消，归还库存
+            List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(orderIds);
 
+            // 3. 归还Redis库存，删除定时
+            List<String> args = new ArrayList<>(1 + cancelled.size() * 2 + polled.size());
+            args.add(String.valueOf(cancelled.size()));
+            for (VoucherOrder order : cancelled) {
+                args.add(order.getVoucherId().toString());
+                args.add(order.getUserId().toString());
+            }
+            polled.forEach(o -> args.add(o.toString()));
+            stringRedisTemplate.execute(ORDER_TIMEOUT_ACK_SCRIPT, Collections.emptyList(), args.toArray());
+
+            // 4. 有库存了，清掉各节点的售罄标记，记录订单状态
+            cancelled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutMarker::clear);
+            updateOrderStatus(cancelled, ORDER_CANCELLED, "超时未支付");
+            cancelledCount.addAndGet(cancelled.size());
+            if (!cancelled.isEmpty()) {
+                log.info("取消超时未支付订单{}个", cancelled.size());
             }
+            return orderIds.size();
         }
     }
 
+    private boolean unpaidTimeoutEnabled() {
+        return !seckillProperties.getUnpaidTimeout().isZero() && !seckillProperties.getUnpaidTimeout().isNegative();
+    }
+
     /*
     private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
     private class VoucherOrderHandler implements Runnable {
@@ -176,8 +800,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
      */
 
+    private void handleRecord(MapRecord<String, Object, Object> record) {
+        // 解析消息中的订单信息
+        Map<Object, Object> values = record.getValue();
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+
+        // 如果获取成功，可以下单！
+        // 创建订单
+        handleVoucherOrder(voucherOrder);
+
+        // 做ACK确认 SACK
+        stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, record.getId());
+    }
+
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
 
+        // 幂等模式下由唯一索引保证一人一单，不需要分布式锁
+        if (seckillProperties.getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT) {
+            proxy.createVoucherOrder(voucherOrder);
+            return;
+        }
+
         // 因为这是另外一个线程
         Long userId = voucherOrder.getUserId();
 
@@ -190,6 +833,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!isLock) {
             // 这里获取锁失败，返回错误信息，或者重试
             log.error("不允许重复下单！");
+            updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_FAILED, "不能重复下单");
             return ;
         }
 
@@ -204,38 +848,273 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
-    IVoucherOrderService proxy;
+    /**
+     * 注入自身的代理对象，consumer线程里调用事务方法要用它
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
 
     @Override
     public Result setKillVoucher(Long voucherId) {
 
-        Long userId = UserHolder.getUser().getId();
-        // 订单ID
-        long orderId = redisIdWorker.nextId("order");
+        // 0. 本地已经标记售罄，直接返回，不用再访问Redis
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
 
-        // 1. 执行lua脚本，得到结果，到底有没有购买的资格？
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        Long userId = UserHolder.getUser().getId();
+        long orderId = 0;
+        List<String> shardKeys;
+        Long result;
+        try {
+            // 订单ID
+            orderId = idGenerator.nextId("order");
+
+            // 1. 执行lua脚本，得到结果，到底有没有购买的资格？
+            // 分片券把要尝试的库存分片通过KEYS传进去，自己的分片在前，本地知道已经卖完的分片不传，一次调用完成
+            shardKeys = stockShardKeys(voucherId, userId);
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    shardKeys,
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.ORDER_STATUS_TTL))
+            );
+        } catch (DataAccessException e) {
+            // Redis不可用，开启了本地订单日志就先记到本地，等Redis恢复后回放
+            if (!orderJournal.isEnabled()) {
+                throw e;
+            }
+            return journalVoucherOrder(voucherId, userId, orderId != 0 ? orderId : idGenerator.nextLocalId());
+        }
 
         // 判断结果是否为0
         int r = result.intValue();
-        if (r != 0) {
+        if (r < 0) {
+            // 分片券跳过了前面-r个卖完的分片，标记下来，后面的请求不再传这些分片
+            for (int i = 0; i < -r; i++) {
+                soldOutMarker.markShardSoldOut(voucherId, shardIndex(shardKeys.get(i + 2)));
+            }
+        } else if (r != 0) {
             // 2.1 不为0，没购买资格，返回错误信息
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == 1) {
+                // 库存没了，标记售罄，后面的请求在本地就拦下来
+                soldOutMarker.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailReason(r));
         }
 
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         // 3.1 返回订单id
 
         return Result.ok(orderId);
     }
 
+    @Override
+    public Result setKillVouchers(List<Long> voucherIds, boolean allOrNothing) {
+        // 1. 去重，同一张券一个人只能抢一张
+        List<Long> ids = voucherIds == null ? Collections.emptyList() : new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.isEmpty()) {
+            return Result.fail("请选择要抢购的优惠券");
+        }
+        if (ids.size() > seckillProperties.getBasketMaxSize()) {
+            return Result.fail("一次最多抢购" + seckillProperties.getBasketMaxSize() + "张优惠券");
+        }
+        Long userId = UserHolder.getUser().getId();
+
+        // 2. 本地已经标记售罄的券不用再去Redis，结果按请求的顺序返回
+        Map<Long, Map<String, Object>> items = new LinkedHashMap<>();
+        List<Long> candidates = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            items.put(voucherId, null);
+            if (soldOutMarker.isSoldOut(voucherId)) {
+                items.put(voucherId, basketItem(voucherId, null, seckillFailReason(1)));
+            } else {
+                candidates.add(voucherId);
+            }
+        }
+        if (candidates.isEmpty() || (allOrNothing && candidates.size() < ids.size())) {
+            candidates.forEach(id -> items.put(id, basketItem(id, null, seckillFailReason(5))));
+            return Result.ok(new ArrayList<>(items.values()));
+        }
+
+        // 3. 一次INCRBY生成整单的订单id，一次执行秒杀脚本
+        long[] orderIds = null;
+        List<?> codes;
+        try {
+            orderIds = idGenerator.nextIds("order", candidates.size());
+            codes = stringRedisTemplate.execute(
+                    SECKILL_BASKET_SCRIPT,
+                    Collections.emptyList(),
+                    StrUtil.join(",", candidates),
+                    userId.toString(),
+                    StrUtil.join(",", orderIds),
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.ORDER_STATUS_TTL)),
+                    allOrNothing ? "all" : "best"
+            );
+        } catch (DataAccessException e) {
+            // Redis不可用时本地日志没法保证整单成功，只有能抢几张算几张的才写本地日志
+            if (!orderJournal.isEnabled()) {
+                throw e;
+            }
+            if (allOrNothing) {
+                return Result.fail("系统繁忙，请稍后再试");
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                Long voucherId = candidates.get(i);
+                Result r = journalVoucherOrder(voucherId, userId,
+                        orderIds != null ? orderIds[i] : idGenerator.nextLocalId());
+                items.put(voucherId, basketItem(voucherId, (Long) r.getData(), r.getErrorMsg()));
+            }
+            return Result.ok(new ArrayList<>(items.values()));
+        }
+
+        // 4. 整理每张券的结果
+        for (int i = 0; i < candidates.size(); i++) {
+            Long voucherId = candidates.get(i);
+            int r = ((Number) codes.get(i)).intValue();
+            if (r == 0) {
+                items.put(voucherId, basketItem(voucherId, orderIds[i], null));
+                continue;
+            }
+            if (r == 1) {
+                soldOutMarker.markSoldOut(voucherId);
+            }
+            items.put(voucherId, basketItem(voucherId, null, seckillFailReason(r)));
+        }
+        return Result.ok(new ArrayList<>(items.values()));
+    }
+
+    /**
+     * 秒杀券的库存分片数，新建秒杀券时就定下来了，每张券只查一次Redis
+     */
+    private int stockShards(Long voucherId) {
+        return stockShards.computeIfAbsent(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + id);
+            return shards == null ? 1 : Math.max(1, Integer.parseInt(shards));
+        });
+    }
+
+    /**
+     * 单张分片券传给seckill.lua的KEYS：自己分片的下单用户集合和位图，然后是依次尝试的库存分片，
+     * 从自己的分片开始，跳过本地已经标记卖完的分片。没有分片的券不传
+     */
+    private List<String> stockShardKeys(Long voucherId, Long userId) {
+        int shards = stockShards(voucherId);
+        if (shards <= 1) {
+            return Collections.emptyList();
+        }
+        int home = (int) Math.floorMod(userId, (long) shards);
+        List<String> keys = new ArrayList<>(shards + 2);
+        keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId + ":" + home);
+        keys.add(RedisConstants.SECKILL_BUYERS_KEY + voucherId + ":" + home);
+        for (int i = 0; i < shards; i++) {
+            int shard = (home + i) % shards;
+            if (!soldOutMarker.isShardSoldOut(voucherId, shard)) {
+                keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + shard);
+            }
+        }
+        return keys;
+    }
+
+    private static int shardIndex(String stockShardKey) {
+        return Integer.parseInt(stockShardKey.substring(stockShardKey.lastIndexOf(':') + 1));
+    }
+
+    private static String seckillFailReason(int code) {
+        switch (code) {
+            case 1:
+                return "库存不足";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            case 5:
+                return "其他优惠券抢购失败，整单取消";
+            default:
+                return "不能重复下单";
+        }
+    }
+
+    private static Map<String, Object> basketItem(Long voucherId, Long orderId, String reason) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("voucherId", voucherId);
+        item.put("success", reason == null);
+        item.put("orderId", orderId);
+        item.put("reason", reason);
+        return item;
+    }
+
+    /**
+     * 订单写入本地日志，落盘后返回订单id。脚本可能其实已经执行成功，所以沿用同一个订单id，回放时按重复投递处理。
+     * 日志不经过秒杀脚本，先在本地按秒杀时间和库存校验一次，Redis停的时间比秒杀还长也不会一直收单
+     */
+    private Result journalVoucherOrder(Long voucherId, Long userId, long orderId) {
+        // 1. 秒杀时间和库存按第一次写日志时数据库里的值，数据库里的库存不少于Redis里的，最多多收还没落库的那部分，回放时会拦下
+        JournalQuota quota;
+        try {
+            quota = journalQuotas.computeIfAbsent(voucherId, this::loadJournalQuota);
+        } catch (Exception e) {
+            log.error("读取秒杀券失败，voucherId={}", voucherId, e);
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        if (quota == null) {
+            return Result.fail("优惠券不存在");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (now.isBefore(quota.getBeginTime())) {
+            return Result.fail(seckillFailReason(3));
+        }
+        if (now.isAfter(quota.getEndTime())) {
+            return Result.fail(seckillFailReason(4));
+        }
+        if (quota.getRemaining().decrementAndGet() < 0) {
+            quota.getRemaining().incrementAndGet();
+            return Result.fail(seckillFailReason(1));
+        }
+
+        // 2. 写入日志，没写成的把库存还回去
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        voucherOrder.setCreateTime(LocalDateTime.now());
+        try {
+            if (!orderJournal.append(voucherOrder)) {
+                quota.getRemaining().incrementAndGet();
+                return Result.fail("不能重复下单");
+            }
+        } catch (IOException e) {
+            quota.getRemaining().incrementAndGet();
+            log.error("写入本地订单日志失败，voucherId={}, userId={}", voucherId, userId, e);
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        journaledCount.incrementAndGet();
+        return Result.ok(orderId);
+    }
+
+    private JournalQuota loadJournalQuota(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+        return new JournalQuota(voucher.getBeginTime(), voucher.getEndTime(), new AtomicInteger(voucher.getStock()));
+    }
+
+    @Data
+    private static class JournalQuota {
+
+        private final LocalDateTime beginTime;
+
+        private final LocalDateTime endTime;
+
+        /**
+         * 还能写入日志的订单数
+         */
+        private final AtomicInteger remaining;
+    }
+
     /*
     @Override
     public Result setKillVoucher(Long voucherId) {
@@ -262,7 +1141,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
         // 订单ID
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = idGenerator.nextId("order");
         voucherOrder.setId(orderId).setId(orderId);
         // 用户id
         voucherOrder.setUserId(userId);
@@ -342,6 +1221,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
 
+        if (seckillProperties.getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT) {
+            createVoucherOrderIdempotent(voucherOrder);
+            return;
+        }
+
         // 一人一单
         Long userId = voucherOrder.getUserId();
 
@@ -354,6 +1238,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (count >= 1) {
             // 用户已经购买过了！
             log.error("用户已经购买过一次！");
+            // 同一条消息重复投递时，订单其实已经落库了
+            boolean redelivered = getById(voucherOrder.getId()) != null;
+            updateOrderStatus(Collections.singletonList(voucherOrder),
+                    redelivered ? ORDER_PERSISTED : ORDER_FAILED, redelivered ? null : "不能重复下单");
             return ;
         }
 
@@ -368,11 +1256,309 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!success) {
 //            return Result.fail("库存不足");
             log.error("库存不足！");
+            updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_FAILED, "库存不足");
             return ;
         }
 
         // 创建订单
         save(voucherOrder);
+        updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_PERSISTED, null);
+
+    }
+
+    /**
+     * 批量创建订单。Lua脚本已经保证了库存和一人一单，这里只做兜底：
+     * 批内去重、一次查询已存在的订单、每个优惠券一条扣减库存的UPDATE、一条多行INSERT
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (seckillProperties.getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT) {
+            createVoucherOrderBatchIdempotent(voucherOrders);
+            return;
+        }
+
+        // 1. 批内去重，同一用户同一优惠券只保留第一条
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+
+        // 2. 一次查询出已经下过单的用户，剔除掉
+        List<VoucherOrder> existing = query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        List<VoucherOrder> persisted = new ArrayList<>();
+        for (VoucherOrder order : existing) {
+            VoucherOrder removed = orderMap.remove(order.getUserId() + ":" + order.getVoucherId());
+            if (removed != null) {
+                log.error("用户已经购买过一次！userId={}, voucherId={}", order.getUserId(), order.getVoucherId());
+                if (removed.getId().equals(order.getId())) {
+                    // 同一条消息重复投递，订单其实已经落库了
+                    persisted.add(removed);
+                }
+            }
+        }
 
+        // 3. 按优惠券分组，合并扣减库存
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : orderMap.values()) {
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        List<VoucherOrder> toSave = new ArrayList<>(orderMap.size());
+        List<VoucherOrder> noStock = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int n = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", n)
+                    .update();
+            if (success) {
+                toSave.addAll(orders);
+                continue;
+            }
+            // 整体扣减失败，说明Redis和数据库库存不一致，退回到逐条扣减，能扣几个算几个
+            for (VoucherOrder voucherOrder : orders) {
+                boolean one = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", entry.getKey())
+                        .gt("stock", 0)
+                        .update();
+                if (!one) {
+                    log.error("库存不足！voucherId={}, orderId={}", entry.getKey(), voucherOrder.getId());
+                    noStock.add(voucherOrder);
+                    continue;
+                }
+                toSave.add(voucherOrder);
+            }
+        }
+
+        // 4. 一条多行INSERT写入订单
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+
+        // 5. 记录每个订单的处理结果
+        persisted.addAll(toSave);
+        updateOrderStatus(persisted, ORDER_PERSISTED, null);
+        updateOrderStatus(noStock, ORDER_FAILED, "库存不足");
+        updateOrderStatus(excludeOrders(voucherOrders, persisted, noStock), ORDER_FAILED, "不能重复下单");
+    }
+
+    /**
+     * 先INSERT IGNORE，由唯一索引(user_id, voucher_id)判断是否重复，插入成功再扣库存，不需要先查询
+     */
+    private void createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1. 插入订单，影响行数为0说明重复了（同一用户同一优惠券，或者同一条消息重复投递）
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            log.error("用户已经购买过一次！userId={}, voucherId={}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            boolean redelivered = getById(voucherOrder.getId()) != null;
+            updateOrderStatus(Collections.singletonList(voucherOrder),
+                    redelivered ? ORDER_PERSISTED : ORDER_FAILED, redelivered ? null : "不能重复下单");
+            return;
+        }
+
+        // 2. 扣减库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .gt("stock", 0)
+                .update();
+
+        if (!success) {
+            // 库存不足，把刚插入的订单回滚掉
+            log.error("库存不足！");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_FAILED, "库存不足");
+            return;
+        }
+        updateOrderStatus(Collections.singletonList(voucherOrder), ORDER_PERSISTED, null);
+    }
+
+    /**
+     * 每个优惠券一条多行INSERT IGNORE，按实际插入的行数扣库存。
+     * 库存扣不下来说明数据不一致，抛异常整批回滚，由调用方改为逐条处理
+     */
+    private void createVoucherOrderBatchIdempotent(List<VoucherOrder> voucherOrders) {
+        // 1. 按优惠券分组
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            // 2. 插入订单，重复的会被忽略
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted < orders.size()) {
+                log.error("批量下单中有{}个重复订单，voucherId={}", orders.size() - inserted, entry.getKey());
+                // 查出哪些订单在库里，重复投递的消息也算已落库，剩下的就是重复下单
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> savedIds = query().select("id").in("id", ids).list().stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                List<VoucherOrder> saved = orders.stream()
+                        .filter(o -> savedIds.contains(o.getId())).collect(Collectors.toList());
+                updateOrderStatus(saved, ORDER_PERSISTED, null);
+                updateOrderStatus(excludeOrders(orders, saved), ORDER_FAILED, "不能重复下单");
+            } else {
+                updateOrderStatus(orders, ORDER_PERSISTED, null);
+            }
+            if (inserted == 0) {
+                continue;
+            }
+
+            // 3. 按实际插入的数量扣库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足，voucherId=" + entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1. 锁住还没支付的订单，和支付同时发生时，谁先拿到行锁以谁为准
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id")
+                .in("id", orderIds)
+                .eq("status", STATUS_UNPAID)
+                .last("for update")
+                .list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+
+        // 2. 一条UPDATE全部取消
+        update().set("status", STATUS_CANCELLED)
+                .set("update_time", LocalDateTime.now())
+                .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .eq("status", STATUS_UNPAID)
+                .update();
+
+        // 3. 按优惠券合并归还库存
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, n) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + n)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
+
+    @SafeVarargs
+    private static List<VoucherOrder> excludeOrders(List<VoucherOrder> orders, List<VoucherOrder>... excluded) {
+        Set<Long> ids = new HashSet<>();
+        for (List<VoucherOrder> list : excluded) {
+            list.forEach(o -> ids.add(o.getId()));
+        }
+        return orders.stream().filter(o -> !ids.contains(o.getId())).collect(Collectors.toList());
+    }
+
+    /**
+     * 记录订单的处理结果，供客户端轮询。在事务中时等事务结束再写，已落库的状态只在提交成功后写
+     */
+    private void updateOrderStatus(List<VoucherOrder> orders, String status, String reason) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            writeOrderStatus(orders, status, reason);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int txStatus) {
+                if (txStatus == STATUS_COMMITTED || !ORDER_PERSISTED.equals(status)) {
+                    writeOrderStatus(orders, status, reason);
+                }
+            }
+        });
+    }
+
+    private void writeOrderStatus(List<VoucherOrder> orders, String status, String reason) {
+        try {
+            long ttl = TimeUnit.MINUTES.toSeconds(RedisConstants.ORDER_STATUS_TTL);
+            // 落库的订单开始计时，到期还没支付就取消
+            boolean scheduleTimeout = ORDER_PERSISTED.equals(status) && unpaidTimeoutEnabled();
+            long deadline = System.currentTimeMillis() + seckillProperties.getUnpaidTimeout().toMillis();
+            long bucket = deadline / seckillProperties.getUnpaidTimeoutBucket().toMillis();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    if (scheduleTimeout) {
+                        conn.zAdd(RedisConstants.ORDER_TIMEOUT_KEY + bucket, deadline, order.getId().toString());
+                    }
+                    String key = RedisConstants.ORDER_STATUS_KEY + order.getId();
+                    Map<String, String> hash = new HashMap<>(4);
+                    hash.put("status", status);
+                    hash.put("userId", order.getUserId().toString());
+                    if (reason != null) {
+                        hash.put("reason", reason);
+                    }
+                    conn.hMSet(key, hash);
+                    conn.expire(key, ttl);
+                }
+                if (scheduleTimeout) {
+                    // 先写订单再登记桶号，取消任务删除空桶的索引时不会漏掉刚写进去的订单
+                    conn.zAdd(RedisConstants.ORDER_TIMEOUT_BUCKETS_KEY, bucket, String.valueOf(bucket));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 状态只是给客户端查询用的，写失败不影响订单本身
+            log.error("写入订单状态失败，status={}", status, e);
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 1. 查询Redis中的订单状态，不访问数据库
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(RedisConstants.ORDER_STATUS_KEY + orderId);
+
+        // 2. 只能查自己的订单
+        Long userId = UserHolder.getUser().getId();
+        if (entries.isEmpty() || !userId.toString().equals(entries.get("userId"))) {
+            return Result.fail("订单不存在或状态已过期");
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("orderId", orderId);
+        result.put("status", entries.get("status"));
+        result.put("reason", entries.get("reason"));
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result queryConsumerStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumer", consumerName);
+        stats.put("workers", orderWorkers.length);
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(QUEUE_NAME, GROUP_NAME);
+        stats.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+        stats.put("retried", retryCount.get());
+        stats.put("recovered", recoveredCount.get());
+        stats.put("deadLettered", deadLetterCount.get());
+        stats.put("deadLetterSize", stringRedisTemplate.opsForStream().size(DLQ_NAME));
+        stats.put("journaled", journaledCount.get());
+        stats.put("replayed", replayedCount.get());
+        stats.put("journalSegments", orderJournal.pendingSegments());
+        stats.put("cancelled", cancelledCount.get());
+        stats.put("streamLength", stringRedisTemplate.opsForStream().size(QUEUE_NAME));
+        stats.put("streamMemoryBytes", stringRedisTemplate.execute(MEMORY_USAGE_SCRIPT, Collections.singletonList(QUEUE_NAME)));
+        stats.put("trimmed", trimmedCount.get());
+        stats.put("archived", orderArchive.getArchivedCount());
+        return Result.ok(stats);
     }
 }
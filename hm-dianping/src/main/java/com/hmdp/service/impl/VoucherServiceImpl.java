@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
@@ -32,6 +33,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,9 +57,27 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
+        // 保存秒杀时间到Redis中去，由秒杀脚本判断是否在秒杀时间内
+        seckillVoucherService.saveSeckillTimeToRedis(seckillVoucher);
+
         // 保存秒杀库存到Redis中去
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
-                voucher.getStock().toString());
+        int shards = seckillProperties.getStockShards();
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
+                    voucher.getStock().toString());
+            return;
+        }
+
+        // 分片库存：把库存平均拆到 seckill:stock:{id}:{i}，余数分给前几个分片
+        int stock = voucher.getStock();
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId() + ":" + i,
+                    String.valueOf(shardStock));
+        }
+        // 分片数最后写，Lua脚本看到它才会按分片处理
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucher.getId(),
+                String.valueOf(shards));
 
     }
 }
@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按long型id判断的布隆过滤器，位图放在进程内，查询不访问Redis。
+ * <p>
+ * 第i位对应 words[i / 64] 从高位数的第 i % 64 位，按大端序转成字节数组后和Redis位图（SETBIT/GETBIT）的布局完全一致，
+ * 可以直接和Redis里的位图互相合并。只支持添加，删除的数据留在位图里，只是多一点误判
+ */
+public class BloomFilter {
+
+    private final String name;
+
+    private final long expectedInsertions;
+
+    private final double fpp;
+
+    private final long numBits;
+
+    private final int numHashes;
+
+    private final AtomicLongArray words;
+
+    /**
+     * 位图是否已经包含全部数据，构建完成之前一律放行
+     */
+    private volatile boolean ready;
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BloomFilter(String name, long expectedInsertions, double fpp) {
+        this.name = name;
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+        this.fpp = fpp;
+        // m = -n * ln(p) / (ln2)^2，凑成64的整数倍；k = m / n * ln2
+        long bits = (long) Math.ceil(-this.expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.max(1, (bits + 63) >>> 6);
+        this.numBits = (long) wordCount << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray(wordCount);
+    }
+
+    /**
+     * 可能存在返回true；返回false时一定不存在
+     */
+    public boolean mightContain(long id) {
+        checks.incrementAndGet();
+        if (!ready) {
+            return true;
+        }
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(h1, h2, i);
+            if ((words.get((int) (bit >>> 6)) & mask(bit)) == 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加一个id，返回它对应的位，用来同步到Redis
+     */
+    public long[] put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(h1, h2, i);
+            setBit(bit);
+            offsets[i] = bit;
+        }
+        return offsets;
+    }
+
+    private void setBit(long bit) {
+        int word = (int) (bit >>> 6);
+        long mask = mask(bit);
+        long old;
+        do {
+            old = words.get(word);
+        } while ((old & mask) == 0 && !words.compareAndSet(word, old, old | mask));
+    }
+
+    /**
+     * 按Redis位图的布局导出
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() << 3);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 把Redis里的位图并到本地，长度不足的部分按0处理
+     */
+    public void merge(byte[] bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        int length = Math.min(words.length(), bitmap.length >>> 3);
+        ByteBuffer buffer = ByteBuffer.wrap(bitmap);
+        for (int i = 0; i < length; i++) {
+            long value = buffer.getLong();
+            if (value != 0) {
+                words.accumulateAndGet(i, value, (a, b) -> a | b);
+            }
+        }
+        // 最后不满8字节的部分
+        for (int i = length << 3; i < Math.min(bitmap.length, words.length() << 3); i++) {
+            long value = (bitmap[i] & 0xFFL) << ((7 - (i & 7)) << 3);
+            if (value != 0) {
+                words.accumulateAndGet(i >>> 3, value, (a, b) -> a | b);
+            }
+        }
+    }
+
+    public long bitCount() {
+        long count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    public Map<String, Object> stats() {
+        long setBits = bitCount();
+        double fillRatio = (double) setBits / numBits;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("expectedInsertions", expectedInsertions);
+        stats.put("fpp", fpp);
+        stats.put("numBits", numBits);
+        stats.put("numHashes", numHashes);
+        stats.put("bitCount", setBits);
+        // 按置位的比例反推：n ≈ -m / k * ln(1 - X / m)，误判率 ≈ (X / m)^k
+        stats.put("approximateCount", fillRatio >= 1 ? Long.MAX_VALUE
+                : Math.round(-(double) numBits / numHashes * Math.log(1 - fillRatio)));
+        stats.put("estimatedFpp", Math.pow(fillRatio, numHashes));
+        stats.put("checks", checks.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * Kirsch-Mitzenmacher：用两个哈希值 h1 + i * h2 模拟k个哈希函数
+     */
+    private long index(long h1, long h2, int i) {
+        return ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+    }
+
+    private static long mask(long bit) {
+        return 1L << (63 - (bit & 63));
+    }
+
+    /**
+     * splitmix64的混淆函数，连续的自增id也能均匀打散
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,43 +1,293 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.time.LocalDateTime;
+import javax.annotation.PreDestroy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * 缓存工具：Redis缓存，可选地在前面加一层进程内缓存（L1）。
+ * L1只保存反序列化好的对象，命中时不访问Redis也不解析JSON；数据更新时调用 invalidate，
+ * 通过Redis频道通知所有节点删除自己的L1，广播丢失时靠L1的有效期兜底。
+ * <p>
+ * 缓存未命中时同一个key在本节点只有一个线程去加载，其他线程等它的结果；节点之间再靠Redis互斥锁。
+ * <p>
+ * Redis里的值是 1字节标记 + 1字节编码id + 8字节逻辑过期时间（毫秒，0表示没有）+ 编码后的对象，
+ * 逻辑过期时间在固定位置，读的时候只解码一次对象。没有这个头的是以前写的JSON，照旧解析
+ * <p>
+ * query 统计每个key的访问频率，普通key按缓存穿透的方式读，热点key自动改用逻辑过期并放进进程内缓存，
+ * 冷下来之后恢复成有TTL的普通缓存
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    /**
+     * L1里缓存的空值，对应Redis里的空字符串
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final byte MAGIC = (byte) 0xCA;
+
+    private static final int HEADER_LENGTH = 10;
+
+    /**
+     * 写入用的编码
+     */
+    private final CacheCodec codec;
+
+    /**
+     * 按编码id查找，读取时用值头部记录的编码
+     */
+    private final CacheCodec[] codecs = new CacheCodec[128];
+
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 进程内缓存，没开启、也不识别热点key时为null
+     */
+    private final Cache<String, Object> localCache;
+
+    /**
+     * 为false时进程内缓存只放热点key
+     */
+    private final boolean localEnabled;
+
+    /**
+     * 互斥锁模式下等别的节点重建的最长时间
+     */
+    private final long mutexMaxWaitMillis;
+
+    /**
+     * 没开启热点识别时为null
+     */
+    private final HotKeyDetector hotKeyDetector;
+
+    private final ScheduledFuture<?> hotKeyCheckTask;
+
+    private final AtomicLong redisHits = new AtomicLong();
+
+    private final AtomicLong redisMisses = new AtomicLong();
+
+    /**
+     * 正在加载的key，同一个key的其他线程等待这里的结果
+     */
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheProperties cacheProperties,
+                       RedisMessageListenerContainer redisMessageListenerContainer) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        for (CacheCodec c : new CacheCodec[]{jsonCodec, new SmileCacheCodec(), new ShopBinaryCodec()}) {
+            codecs[c.id()] = c;
+        }
+        this.codec = cacheProperties.getCodec() == CacheProperties.Codec.SMILE ? codecs[SmileCacheCodec.ID]
+                : cacheProperties.getCodec() == CacheProperties.Codec.BINARY ? codecs[ShopBinaryCodec.ID]
+                : jsonCodec;
+        this.localEnabled = cacheProperties.isLocalEnabled();
+        this.mutexMaxWaitMillis = cacheProperties.getMutexMaxWait().toMillis();
+        this.hotKeyDetector = cacheProperties.isHotKeyEnabled() ? new HotKeyDetector(cacheProperties) : null;
+        this.localCache = localEnabled || hotKeyDetector != null
+                ? Caffeine.newBuilder()
+                        .maximumSize(cacheProperties.getLocalMaxSize())
+                        .expireAfterWrite(cacheProperties.getLocalTtl())
+                        .recordStats()
+                        .build()
+                : null;
+        if (localCache != null) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        }
+        if (hotKeyDetector != null) {
+            long interval = hotKeyDetector.checkIntervalMillis();
+            this.hotKeyCheckTask = HOT_KEY_EXECUTOR.scheduleWithFixedDelay(this::demoteColdKeys, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.hotKeyCheckTask = null;
+        }
     }
 
-    public void set(String key, Object value, Long time, TimeUnit unit) {
+    /**
+     * 停止热点key检查，取消订阅失效频道
+     */
+    @PreDestroy
+    public void close() {
+        if (hotKeyCheckTask != null) {
+            hotKeyCheckTask.cancel(false);
+        }
+        if (localCache != null) {
+            redisMessageListenerContainer.removeMessageListener(this);
+        }
+    }
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+    public void set(String key, Object value, Long time, TimeUnit unit) {
+        byte[] bytes = encode(value, 0);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands().set(
+                key.getBytes(StandardCharsets.UTF_8), bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+        evictLocal(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        // 逻辑过期时间写在头部
+        byte[] bytes = encode(value, System.currentTimeMillis() + unit.toMillis(time));
 
         // 写到Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), bytes));
+        evictLocal(key);
+    }
+
+    /**
+     * 数据更新后删除缓存：删除Redis中的key，并通知所有节点删除L1。
+     * 在事务中调用时等提交之后再删，否则别的请求可能在提交前把旧数据又读回缓存
+     */
+    public void invalidate(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doInvalidate(key);
+                }
+            });
+            return;
+        }
+        doInvalidate(key);
+    }
+
+    private void doInvalidate(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        if (localCache != null) {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 各层的命中率
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("codec", codec.getClass().getSimpleName());
+        stats.put("localEnabled", localEnabled);
+        if (localCache != null) {
+            CacheStats local = localCache.stats();
+            stats.put("localSize", localCache.estimatedSize());
+            stats.put("localHits", local.hitCount());
+            stats.put("localMisses", local.missCount());
+            stats.put("localHitRatio", local.hitRate());
+            stats.put("localEvictions", local.evictionCount());
+        }
+        long hits = redisHits.get();
+        long misses = redisMisses.get();
+        stats.put("redisHits", hits);
+        stats.put("redisMisses", misses);
+        stats.put("redisHitRatio", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        stats.put("loads", loads.get());
+        stats.put("coalescedLoads", coalesced.get());
+        if (hotKeyDetector != null) {
+            stats.putAll(hotKeyDetector.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 本节点当前的热点key
+     */
+    public List<Map<String, Object>> hotKeys() {
+        return hotKeyDetector == null ? new ArrayList<>() : hotKeyDetector.hotKeys();
+    }
+
+    /**
+     * 按访问频率自动选择：普通key按缓存穿透的方式读，有TTL；热点key按逻辑过期读，先查进程内缓存，
+     * Redis里的值不会过期，过期后返回旧值并在后台重建。没开启热点识别时和 queryWithPassThrough 一样
+     */
+    public <R, ID> R query(
+            String keyPrefix, ID id, Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 1. 记一次访问，不是热点就按普通缓存读
+        if (hotKeyDetector == null || !hotKeyDetector.record(key, unit.toMillis(time))) {
+            return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit);
+        }
+
+        // 2. 热点key先查进程内缓存，里面只放没过期的数据
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+
+        // 3. 再查Redis
+        byte[] cached = getRedis(key);
+        if (cached == null) {
+            // 3.1 不存在，本节点合并成一次查库，按逻辑过期写入
+            return singleFlight(key, () -> loadLogical(key, id, dbFallback, time, unit));
+        }
+        if (cached.length == 0) {
+            // 3.2 缓存的空值
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+
+        // 4. 没过期直接返回；过期了，或者是升级之前写的普通缓存（没有逻辑过期时间），返回旧值并在后台重建
+        long expireAt = expireAtOf(cached);
+        R r = cached[0] == MAGIC ? decodeValue(cached, type) : decodeLegacy(cached, type);
+        if (expireAt > System.currentTimeMillis()) {
+            putLocal(key, r);
+            return r;
+        }
+        rebuildAsync(key, "lock:" + key, id, dbFallback, time, unit, true);
+        return r;
     }
 
     /**
@@ -57,37 +307,250 @@ public class CacheClient {
             Function<ID, R> dbFallback,
             Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1. 先去Redis中查一下缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3. 存在，就直接返回
-            return JSONUtil.toBean(json, type);
+        // 0. 先查进程内缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
         }
 
-        // 判断命中的是否是空值
-        // 我tm知道这个啥意思了，如果是空字符串，这个东西也就是isBlank成立，但是不是Null
-        if (json != null) {
-            return null;
+        // 1. 先去Redis中查一下缓存
+        byte[] cached = getRedis(key);
+        // 2. 判断是否存在；按逻辑过期写的值（升级成热点时写的）过期了当作不存在
+        if (cached != null && !isLogicallyExpired(cached)) {
+            // 3. 存在，就直接返回；空字符串是缓存的空值
+            return decode(key, cached, type);
         }
 
-        // 4. 不存在的话，根据ID查询数据库
+        // 4. 不存在的话，根据ID查询数据库，本节点同一个key只查一次
         // 但是这边我们不直接调用数据库，而是通过函数式编程传入的dbFallback来获取
+        return singleFlight(key, () -> load(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 互斥锁解决缓存击穿：本节点只有一个线程去抢Redis互斥锁并重建，其他线程等它的结果
+     */
+    public <R, ID> R queryWithMutex (
+            String keyPrefix, ID id, Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0. 先查进程内缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+
+        // 1. 再查Redis，命中直接返回
+        byte[] cached = getRedis(key);
+        if (cached != null && !isLogicallyExpired(cached)) {
+            return decode(key, cached, type);
+        }
+
+        // 2. 未命中，本节点合并成一次重建
+        return singleFlight(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit));
+    }
+
+    /**
+     * 批量查询：进程内缓存没有的一次MGET，Redis也没有的一次批量查数据库，再用一个pipeline写回Redis，
+     * 不存在的id写空值。返回结果和ids一一对应，不存在的是null。按普通缓存读，不处理逻辑过期
+     * @param dbBatchFallback 按id批量查数据库，返回 id -> 数据，查不到的不用放
+     */
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type,
+            Function<List<ID>, Map<ID, R>> dbBatchFallback,
+            Long time, TimeUnit unit) {
+        // 1. 去重，先查进程内缓存
+        Map<ID, R> found = new HashMap<>();
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object local = getLocal(keyPrefix + id);
+            if (local == null) {
+                redisIds.add(id);
+            } else if (local != NULL_VALUE) {
+                found.put(id, type.cast(local));
+            }
+        }
+
+        // 2. 剩下的一次MGET
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            byte[][] keys = redisIds.stream()
+                    .map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8))
+                    .toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(keys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] cached = values == null ? null : values.get(i);
+                (cached == null ? redisMisses : redisHits).incrementAndGet();
+                if (cached == null) {
+                    missIds.add(id);
+                    continue;
+                }
+                R r = decode(keyPrefix + id, cached, type);
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 3. Redis也没有的一次查数据库，用一个pipeline写回
+        if (!missIds.isEmpty()) {
+            loads.incrementAndGet();
+            Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+            List<byte[]> values = new ArrayList<>(missIds.size());
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                if (r == null) {
+                    values.add(new byte[0]);
+                    putLocal(keyPrefix + id, NULL_VALUE);
+                } else {
+                    values.add(encode(r, 0));
+                    found.put(id, r);
+                    putLocal(keyPrefix + id, r);
+                }
+            }
+            Expiration ttl = Expiration.from(time, unit);
+            Expiration nullTtl = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < missIds.size(); i++) {
+                    byte[] value = values.get(i);
+                    connection.stringCommands().set((keyPrefix + missIds.get(i)).getBytes(StandardCharsets.UTF_8),
+                            value, value.length == 0 ? nullTtl : ttl, RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        }
+
+        // 4. 按输入的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type,
+                                       Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = "lock:" + key;
+        long deadline = System.currentTimeMillis() + mutexMaxWaitMillis;
+        while (true) {
+            // 1. 抢到锁的节点去查数据库
+            if (tryLock(lockKey)) {
+                try {
+                    // 1.1 双重检查，别的节点可能刚重建完
+                    byte[] cached = getBytes(key);
+                    if (cached != null && !isLogicallyExpired(cached)) {
+                        return decode(key, cached, type);
+                    }
+                    return load(key, id, dbFallback, time, unit);
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+
+            // 2. 别的节点在重建，隔一会儿看看写好了没有；等太久就直接查数据库，结果留给持有锁的节点写入
+            if (System.currentTimeMillis() >= deadline) {
+                loads.incrementAndGet();
+                return dbFallback.apply(id);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] cached = getBytes(key);
+            if (cached != null && !isLogicallyExpired(cached)) {
+                return decode(key, cached, type);
+            }
+        }
+    }
+
+    /**
+     * 查数据库并写入Redis和进程内缓存，不存在的写空值
+     */
+    private <R, ID> R load(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        loads.incrementAndGet();
         R r = dbFallback.apply(id);
 
-        // 5. 数据库中不存在信息，返回错误
+        // 数据库中不存在信息，缓存空值
         if (r == null) {
             stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
             return null;
         }
 
-        // 6. 数据库中如果存在，就写入Redis
+        // 数据库中如果存在，就写入Redis和进程内缓存
         this.set(key, r, time, unit);
+        putLocal(key, r);
+        return r;
+    }
 
-        // 7. 直接返回
+    /**
+     * Redis里取到的值，顺便放进进程内缓存
+     */
+    private <R> R decode(String key, byte[] cached, Class<R> type) {
+        // 我tm知道这个啥意思了，如果是空字符串，这个东西也就是isBlank成立，但是不是Null
+        if (cached.length == 0) {
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+        R r = decodeValue(cached, type);
+        putLocal(key, r);
         return r;
     }
 
+    /**
+     * 写入头部，不支持这个类型的编码改用JSON
+     */
+    private byte[] encode(Object value, long expireAt) {
+        CacheCodec c = codec.supports(value.getClass()) ? codec : jsonCodec;
+        byte[] body = c.encode(value);
+        return ByteBuffer.allocate(HEADER_LENGTH + body.length)
+                .put(MAGIC).put(c.id()).putLong(expireAt).put(body)
+                .array();
+    }
+
+    private <R> R decodeValue(byte[] cached, Class<R> type) {
+        if (cached[0] != MAGIC) {
+            // 以前写的JSON
+            return JSONUtil.toBean(new String(cached, StandardCharsets.UTF_8), type);
+        }
+        CacheCodec c = codecs[cached[1]];
+        if (c == null) {
+            throw new IllegalStateException("未知的缓存编码：" + cached[1]);
+        }
+        return c.decode(cached, HEADER_LENGTH, cached.length - HEADER_LENGTH, type);
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行loader，其他线程等它的结果，异常也一起抛出
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T singleFlight(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
     /**
      * 逻辑过期解决缓存击穿
      * @param keyPrefix
@@ -103,24 +566,28 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire (String keyPrefix, ID id, Class<R> type,
             Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0. 先查进程内缓存，里面只放没过期的数据
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+
         // 1. 先去Redis中查一下商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRedis(key);
         // 2. 判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (cached == null || cached.length == 0) {
             // 3. 不存在，就直接返回
             return null;
         }
 
         // 4 命中，需要判断是否过期
-        // 先把Json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 过期时间在头部，对象只解码一次；以前写的 RedisData 照旧解析
+        long expireAt = expireAtOf(cached);
+        R r = cached[0] == MAGIC ? decodeValue(cached, type) : decodeLegacy(cached, type);
 
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (expireAt > System.currentTimeMillis()) {
             //       5.1 未过期，直接返回店铺信息
+            putLocal(key, r);
             return r;
         }
         //        5.2 已过期，需要缓存重建！
@@ -130,7 +597,20 @@ public class CacheClient {
         // 6.1 获取互斥锁
         // 6.2 判断是否成功获取到锁
 
-        boolean isLock = tryLock(localKey);
+        rebuildAsync(key, localKey, id, dbFallback, time, unit, false);
+        // 这边获得锁之后，其实还要进行双重检查，检查Redis中那个东西有没有重建过了
+
+        // 无论获取成功与否，返回店铺信息（这个商铺信息实际上是过期的）
+        return r;
+    }
+
+    /**
+     * 抢到锁的话开独立线程查库，按逻辑过期重新写入；数据已经不存在的写空值
+     * @param hotKey 是不是 query 识别出的热点key，重建完它可能已经降级了
+     */
+    private <R, ID> void rebuildAsync(String key, String lockKey, ID id,
+                                      Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean hotKey) {
+        boolean isLock = tryLock(lockKey);
 
         if (isLock) {
             // 获取成功，开启独立线程，实现缓存重建
@@ -138,23 +618,143 @@ public class CacheClient {
                 // 重建缓存
                 try {
                     R r_new = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key, r_new, time, unit);
+                    if (r_new == null) {
+                        stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        evictLocal(key);
+                    } else if (hotKey) {
+                        setHotValue(key, r_new, time, unit);
+                    } else {
+                        this.setWithLogicalExpire(key, r_new, time, unit);
+                    }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("缓存重建失败：{}", key, e);
                 } finally {
                     // 把锁释放掉
-                    unlock(localKey);
+                    unlock(lockKey);
                 }
             });
         }
-        // 这边获得锁之后，其实还要进行双重检查，检查Redis中那个东西有没有重建过了
+    }
 
-        // 无论获取成功与否，返回店铺信息（这个商铺信息实际上是过期的）
+    /**
+     * 热点key缓存未命中：查数据库，按逻辑过期写入Redis，并放进进程内缓存
+     */
+    private <R, ID> R loadLogical(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        loads.incrementAndGet();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+        setHotValue(key, r, time, unit);
+        putLocal(key, r);
         return r;
     }
 
+    /**
+     * 热点key按逻辑过期写入，不设TTL；已经降级的按普通缓存写，带TTL。
+     * 写完再检查一次，写的时候刚好被降级的话补上TTL，不会留下永不过期的key
+     */
+    private void setHotValue(String key, Object value, Long time, TimeUnit unit) {
+        if (!hotKeyDetector.isHot(key)) {
+            set(key, value, time, unit);
+            return;
+        }
+        setWithLogicalExpire(key, value, time, unit);
+        if (!hotKeyDetector.isHot(key)) {
+            stringRedisTemplate.expire(key, time, unit);
+        }
+    }
+
+    /**
+     * 冷下来的热点key恢复成普通缓存：先标记为降级中，Redis里的key重新设上TTL，不再放进程内缓存，
+     * 都做完了才从热点里移除。值里还带着逻辑过期时间也没关系，按普通缓存读时不看它
+     */
+    private void demoteColdKeys() {
+        for (HotKeyDetector.HotKey hotKey : hotKeyDetector.demoteCold()) {
+            try {
+                stringRedisTemplate.expire(hotKey.getKey(), hotKey.getTtlMillis(), TimeUnit.MILLISECONDS);
+                if (!localEnabled) {
+                    localCache.invalidate(hotKey.getKey());
+                }
+                hotKeyDetector.remove(hotKey);
+            } catch (Exception e) {
+                hotKeyDetector.cancelDemotion(hotKey);
+                log.error("热点key降级失败：{}", hotKey.getKey(), e);
+            }
+        }
+    }
+
+    private boolean isLogicallyExpired(byte[] cached) {
+        if (cached.length < HEADER_LENGTH || cached[0] != MAGIC) {
+            return false;
+        }
+        long expireAt = ByteBuffer.wrap(cached, 2, 8).getLong();
+        return expireAt != 0 && expireAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * 逻辑过期时间，毫秒；以前写的普通JSON没有，返回0
+     */
+    private long expireAtOf(byte[] cached) {
+        if (cached[0] == MAGIC) {
+            return ByteBuffer.wrap(cached, 2, 8).getLong();
+        }
+        JSONObject json = JSONUtil.parseObj(new String(cached, StandardCharsets.UTF_8));
+        if (!json.containsKey("expireTime") || !json.containsKey("data")) {
+            return 0;
+        }
+        RedisData redisData = json.toBean(RedisData.class);
+        return redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 以前写的JSON：RedisData 取出里面的数据，否则就是对象本身
+     */
+    private <R> R decodeLegacy(byte[] cached, Class<R> type) {
+        JSONObject json = JSONUtil.parseObj(new String(cached, StandardCharsets.UTF_8));
+        if (json.containsKey("expireTime") && json.get("data") instanceof JSONObject) {
+            return JSONUtil.toBean(json.getJSONObject("data"), type);
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    private Object getLocal(String key) {
+        if (localCache == null || !localEnabled && !hotKeyDetector.isHot(key)) {
+            return null;
+        }
+        return localCache.getIfPresent(key);
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCache != null && value != null && (localEnabled || hotKeyDetector.isHot(key))) {
+            localCache.put(key, value);
+        }
+    }
+
+    private void evictLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
+    private byte[] getRedis(String key) {
+        byte[] cached = getBytes(key);
+        (cached == null ? redisMisses : redisHits).incrementAndGet();
+        return cached;
+    }
+
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    private static final ScheduledExecutorService HOT_KEY_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("cache-hot-key-", true));
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
 
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编码方式。Redis里的值前面有 CacheClient 写的固定头，记录用的是哪个编码，
+ * 不同编码的节点混跑时也能读懂对方写的值
+ */
+public interface CacheCodec {
+
+    /**
+     * 写在值的头部，不能重复，也不能改
+     */
+    byte id();
+
+    /**
+     * 不支持的类型由 CacheClient 改用JSON编码
+     */
+    default boolean supports(Class<?> type) {
+        return true;
+    }
+
+    byte[] encode(Object value);
+
+    /**
+     * 从 bytes[offset, offset + length) 解码，跳过头部不用复制数组
+     */
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> type);
+}
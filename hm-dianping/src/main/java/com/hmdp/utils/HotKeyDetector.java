@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点key识别：用滑动窗口的Count-Min Sketch统计每个key的访问次数，
+ * 达到阈值的升级为热点，定时检查，降到阈值一半以下的降级，中间留一段避免在阈值附近来回切换
+ */
+@Slf4j
+public class HotKeyDetector {
+
+    private final SlidingCountMinSketch sketch;
+
+    private final int threshold;
+
+    private final int maxSize;
+
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    private final AtomicLong promotions = new AtomicLong();
+
+    private final AtomicLong demotions = new AtomicLong();
+
+    public HotKeyDetector(CacheProperties cacheProperties) {
+        this.sketch = new SlidingCountMinSketch(cacheProperties.getHotKeySketchDepth(), cacheProperties.getHotKeySketchWidth(),
+                cacheProperties.getHotKeyWindowSlots(), cacheProperties.getHotKeyWindow().toMillis());
+        this.threshold = Math.max(1, cacheProperties.getHotKeyThreshold());
+        this.maxSize = cacheProperties.getHotKeyMaxSize();
+    }
+
+    /**
+     * 记一次访问，返回这个key现在是不是热点
+     * @param ttlMillis 普通缓存的有效期，降级时给Redis里的key重新设上
+     */
+    public boolean record(String key, long ttlMillis) {
+        int count = sketch.add(key);
+        HotKey existing = hotKeys.get(key);
+        if (existing != null) {
+            return !existing.isDemoting();
+        }
+        if (count < threshold || hotKeys.size() >= maxSize) {
+            return false;
+        }
+        if (hotKeys.putIfAbsent(key, new HotKey(key, ttlMillis)) == null) {
+            promotions.incrementAndGet();
+            log.info("热点key升级：{}，窗口内访问约{}次", key, count);
+        }
+        return true;
+    }
+
+    /**
+     * 降级中的key已经不算热点，读写都按普通缓存
+     */
+    public boolean isHot(String key) {
+        HotKey hotKey = hotKeys.get(key);
+        return hotKey != null && !hotKey.isDemoting();
+    }
+
+    /**
+     * 把已经冷下来的key标记为降级中，返回给调用方恢复成普通缓存，恢复完再调用 remove 移除；
+     * 移除之前 hotKeys() 里还能看到它
+     */
+    public List<HotKey> demoteCold() {
+        List<HotKey> cold = new ArrayList<>();
+        int demoteThreshold = threshold / 2;
+        for (HotKey hotKey : hotKeys.values()) {
+            int count = sketch.estimate(hotKey.getKey());
+            if (count < demoteThreshold && !hotKey.isDemoting()) {
+                hotKey.setDemoting(true);
+                log.info("热点key降级：{}，窗口内访问约{}次", hotKey.getKey(), count);
+                cold.add(hotKey);
+            }
+        }
+        return cold;
+    }
+
+    /**
+     * 已经恢复成普通缓存的key从热点里移除；恢复失败的不要调用，下次检查时再试
+     */
+    public void remove(HotKey hotKey) {
+        if (hotKeys.remove(hotKey.getKey(), hotKey)) {
+            demotions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 恢复失败，取消降级中的标记，下次检查时再降级
+     */
+    public void cancelDemotion(HotKey hotKey) {
+        hotKey.setDemoting(false);
+    }
+
+    /**
+     * 当前的热点key，按窗口内访问次数从高到低
+     */
+    public List<Map<String, Object>> hotKeys() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (HotKey hotKey : hotKeys.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", hotKey.getKey());
+            item.put("count", sketch.estimate(hotKey.getKey()));
+            item.put("since", hotKey.getSince());
+            list.add(item);
+        }
+        list.sort(Comparator.comparing(item -> -(Integer) item.get("count")));
+        return list;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hotKeys", hotKeys.size());
+        stats.put("hotKeyPromotions", promotions.get());
+        stats.put("hotKeyDemotions", demotions.get());
+        return stats;
+    }
+
+    /**
+     * 降级检查的间隔，和时间片一样长
+     */
+    public long checkIntervalMillis() {
+        return sketch.getSlotMillis();
+    }
+
+    @Data
+    public static class HotKey {
+
+        private final String key;
+
+        private final long ttlMillis;
+
+        /**
+         * 升级的时间，毫秒
+         */
+        private final long since = System.currentTimeMillis();
+
+        /**
+         * 正在恢复成普通缓存
+         */
+        private volatile boolean demoting;
+    }
+}
@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 店铺、笔记id的布隆过滤器，放在CacheClient前面防止缓存穿透：被拒绝的id一定不存在，不用再查Redis和数据库。
+ * <p>
+ * 位图在每个节点的内存里，启动时按主键分页从数据库读一遍id构建；新增的id写到本地、Redis位图里，
+ * 并通过Redis频道通知其他节点。后台定时把本地位图和Redis里的位图互相合并，补上漏掉的广播，
+ * Redis数据丢失时也能从各节点恢复。构建完成之前一律放行
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+
+    public static final String SHOP = "shop";
+
+    public static final String BLOG = "blog";
+
+    private static final DefaultRedisScript<byte[]> MERGE_SCRIPT;
+
+    static {
+        MERGE_SCRIPT = new DefaultRedisScript<>();
+        MERGE_SCRIPT.setLocation(new ClassPathResource("bloom_merge.lua"));
+        MERGE_SCRIPT.setResultType(byte[].class);
+    }
+
+    private static final ScheduledExecutorService BLOOM_SYNC_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("bloom-sync-", true));
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    private final String owner = UUID.fastUUID().toString(true);
+
+    private final Map<String, BloomFilter> filters = new LinkedHashMap<>();
+
+    private final Map<String, BaseMapper<?>> sources = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        // 1. 每个业务一个过滤器，和它的数据来源
+        sources.put(SHOP, shopMapper);
+        sources.put(BLOG, blogMapper);
+        for (String name : sources.keySet()) {
+            filters.put(name, new BloomFilter(name,
+                    cacheProperties.getBloomExpectedInsertions(), cacheProperties.getBloomFpp()));
+        }
+
+        // 2. 先订阅，构建期间别的节点新增的id也不会漏掉
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+
+        // 3. 从数据库构建，失败的留给后台任务重试，构建好之前放行
+        rebuild();
+
+        long interval = cacheProperties.getBloomSyncInterval().toMillis();
+        BLOOM_SYNC_EXECUTOR.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        BLOOM_SYNC_EXECUTOR.shutdown();
+    }
+
+    /**
+     * 返回false时id一定不存在；没有开启时总是返回true
+     */
+    public boolean mightContain(String name, Long id) {
+        BloomFilter filter = filters.get(name);
+        return filter == null || id == null || filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据之后调用，写入本地和Redis位图并通知其他节点。Redis写失败时只记日志，下次合并时补上
+     */
+    public void add(String name, Long id) {
+        BloomFilter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        long[] offsets = filter.put(id);
+        try {
+            byte[] key = bitmapKey(filter).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (long offset : offsets) {
+                    connection.stringCommands().setBit(key, offset, true);
+                }
+                connection.publish(RedisConstants.BLOOM_ADD_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                        (name + ":" + id).getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("布隆过滤器同步到Redis失败，name={}, id={}", name, id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        BloomFilter filter = filters.get(body.substring(0, Math.max(split, 0)));
+        if (filter == null) {
+            return;
+        }
+        try {
+            filter.put(Long.parseLong(body.substring(split + 1)));
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的布隆过滤器消息：{}", body);
+        }
+    }
+
+    /**
+     * 从数据库重新读一遍全部id，只往位图里加，不影响正在进行的查询。
+     * 绕过应用直接写进数据库的数据，要调用它之后才能查到
+     */
+    public void rebuild() {
+        for (Map.Entry<String, BaseMapper<?>> entry : sources.entrySet()) {
+            BloomFilter filter = filters.get(entry.getKey());
+            try {
+                long begin = System.currentTimeMillis();
+                long count = load(filter, entry.getValue());
+                filter.setReady(true);
+                log.info("布隆过滤器{}构建完成，共{}个id，耗时{}ms", filter.getName(), count, System.currentTimeMillis() - begin);
+            } catch (Exception e) {
+                log.error("布隆过滤器{}构建失败，构建好之前不拦截", filter.getName(), e);
+                continue;
+            }
+            merge(filter);
+        }
+    }
+
+    /**
+     * 各过滤器的误判率和拦截数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", cacheProperties.isBloomEnabled());
+        for (BloomFilter filter : filters.values()) {
+            stats.put(filter.getName(), filter.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 按主键分页，只查id列，一遍读完
+     */
+    private <T> long load(BloomFilter filter, BaseMapper<T> mapper) {
+        int pageSize = cacheProperties.getBloomBuildPageSize();
+        long lastId = 0;
+        long count = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + pageSize));
+            for (Object id : ids) {
+                filter.put(((Number) id).longValue());
+            }
+            count += ids.size();
+            if (ids.size() < pageSize) {
+                return count;
+            }
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+
+    private void sync() {
+        for (Map.Entry<String, BaseMapper<?>> entry : sources.entrySet()) {
+            BloomFilter filter = filters.get(entry.getKey());
+            if (!filter.isReady()) {
+                rebuild();
+                return;
+            }
+            merge(filter);
+        }
+    }
+
+    /**
+     * 本地位图并到Redis，再把合并结果并回本地
+     */
+    private void merge(BloomFilter filter) {
+        try {
+            String key = bitmapKey(filter);
+            byte[] merged = stringRedisTemplate.execute(MERGE_SCRIPT, RedisSerializer.byteArray(), RedisSerializer.byteArray(),
+                    Arrays.asList(key, key + ":tmp:" + owner), (Object) filter.toBytes());
+            filter.merge(merged);
+        } catch (Exception e) {
+            log.warn("布隆过滤器{}和Redis合并失败", filter.getName(), e);
+        }
+    }
+
+    /**
+     * 位图大小和哈希次数写在key里，配置不同的节点不会合并到同一个位图
+     */
+    private static String bitmapKey(BloomFilter filter) {
+        return RedisConstants.BLOOM_KEY + filter.getName() + ":" + filter.getNumBits() + ":" + filter.getNumHashes();
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一ID生成器。ID的高32位都是从 BEGIN_TIMESTAMP 开始的秒数，保证按时间递增，
+ * 订单表主键顺序插入；低32位由各实现自己分配
+ */
+public interface IdGenerator {
+
+    /**
+     * 起始时间 2025-11-03 00:00:00
+     */
+    long BEGIN_TIMESTAMP = 1762128000L;
+
+    /**
+     * 低位（秒内部分）的位数
+     */
+    int COUNT_BITS = 32;
+
+    long nextId(String keyPrefix);
+
+    /**
+     * 批量生成n个ID
+     */
+    default long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = nextId(keyPrefix);
+        }
+        return ids;
+    }
+
+    /**
+     * Redis不可用时也能生成的ID，用于本地订单日志
+     */
+    long nextLocalId();
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * stream.orders 裁剪下来的消息归档，供审计使用。
+ * <p>
+ * 每天一个文件 stream.orders-yyyyMMdd.jsonl.gz，每行一条消息的JSON（消息id和全部字段）。
+ * 每次归档追加一个独立的gzip member，多个member首尾相接仍然是合法的gzip文件，zcat可以直接读出全部内容。
+ * 归档写完fsync之后才能删除Redis中的消息，中途挂掉最多重复归档一批，按消息id去重即可
+ */
+@Slf4j
+@Component
+public class OrderArchive {
+
+    private static final String FILE_PREFIX = "stream.orders-";
+
+    private static final String FILE_SUFFIX = ".jsonl.gz";
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private Path dir;
+
+    private final AtomicLong archivedCount = new AtomicLong();
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        dir = Paths.get(seckillProperties.getStreamArchiveDir());
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * 没有配置归档目录时裁剪的消息直接丢弃
+     */
+    public boolean isEnabled() {
+        return seckillProperties.getStreamArchiveDir() != null && !seckillProperties.getStreamArchiveDir().isEmpty();
+    }
+
+    /**
+     * 追加一批消息到当天的归档文件，返回时已经落盘
+     */
+    public synchronized void archive(List<MapRecord<String, Object, Object>> records) throws IOException {
+        if (!isEnabled() || records.isEmpty()) {
+            return;
+        }
+        Path file = dir.resolve(FILE_PREFIX + LocalDate.now().format(DAY) + FILE_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+            // 1. 一批消息压缩成一个gzip member
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+            Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+            for (MapRecord<String, Object, Object> record : records) {
+                JSONObject line = new JSONObject(record.getValue());
+                line.set("streamId", record.getId().getValue());
+                writer.write(JSONUtil.toJsonStr(line));
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+
+            // 2. 落盘后才能删除Redis中的消息
+            out.getFD().sync();
+        }
+        archivedCount.addAndGet(records.size());
+    }
+
+    /**
+     * 本节点累计归档的消息数
+     */
+    public long getArchivedCount() {
+        return archivedCount.get();
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+}
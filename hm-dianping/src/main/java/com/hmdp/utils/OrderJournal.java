@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 本地订单日志，Redis不可用时秒杀订单先追加到这里，Redis恢复后由消费者回放落库。
+ * <p>
+ * 日志按固定大小的segment文件用mmap顺序追加，每条记录定长40字节：
+ * magic(4) + orderId(8) + userId(8) + voucherId(8) + 下单时间毫秒(8) + crc32(4)。
+ * 刷盘线程每隔journalFlushInterval做一次force，期间的所有订单合并成一次fsync，写入方等到自己的记录落盘才返回。
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final int RECORD_SIZE = 40;
+
+    private static final int MAGIC = 0x4A524E4C;
+
+    private static final String SEGMENT_PREFIX = "orders-";
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private Path dir;
+
+    /**
+     * 保护当前segment和写入计数
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * 当前正在追加的segment，为null时下一次追加会新建一个。只在writeLock里读写
+     */
+    private MappedByteBuffer active;
+
+    /**
+     * 下一个segment的编号，编号比它小的segment都已经建好；只在writeLock里读写
+     */
+    private long nextSegment;
+
+    /**
+     * 已经追加的记录数
+     */
+    private long written;
+
+    /**
+     * 已经落盘的记录数，写入方在flushLock上等待它追上自己
+     */
+    private long flushed;
+
+    private final Object flushLock = new Object();
+
+    /**
+     * 还没回放的 voucherId:userId，同一个用户在Redis故障期间重复点击只记一条
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        dir = Paths.get(seckillProperties.getJournalDir());
+        Files.createDirectories(dir);
+        // 接着已有的segment编号往后写，上次没回放完的segment都算已封存
+        List<Path> segments = listSegments(Long.MAX_VALUE);
+        nextSegment = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        if (!segments.isEmpty()) {
+            log.warn("发现{}个未回放的本地订单日志，Redis可用后回放", segments.size());
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("order-journal-flusher-", true));
+        long interval = Math.max(1, seckillProperties.getJournalFlushInterval().toMillis());
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("本地订单日志已开启，dir={}", dir.toAbsolutePath());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.isJournalEnabled();
+    }
+
+    /**
+     * 追加一个订单，等到落盘后返回
+     * @return false 表示这个用户已经有一条还没回放的同一优惠券订单
+     */
+    public boolean append(VoucherOrder order) throws IOException {
+        String key = order.getVoucherId() + ":" + order.getUserId();
+        if (!pending.add(key)) {
+            return false;
+        }
+        long seq;
+        try {
+            synchronized (writeLock) {
+                if (active == null || active.remaining() < RECORD_SIZE) {
+                    roll();
+                }
+                writeRecord(active, order);
+                seq = ++written;
+            }
+        } catch (IOException | RuntimeException e) {
+            pending.remove(key);
+            throw e;
+        }
+        awaitFlushed(seq);
+        return true;
+    }
+
+    /**
+     * 封存当前segment，之后的追加写到新的segment里
+     * @return 所有已封存、等待回放的segment，按写入顺序排列
+     */
+    public List<Path> seal() throws IOException {
+        synchronized (writeLock) {
+            if (active != null) {
+                active.force();
+                markFlushed(written);
+                active = null;
+            }
+            // 在锁里列出编号小于nextSegment的segment，之后新建的segment编号一定不小于它，不会被当成已封存的回放掉
+            return listSegments(nextSegment);
+        }
+    }
+
+    /**
+     * 读出segment中的全部订单，遇到没写完或者校验失败的记录就停下，后面的记录都没有确认给用户
+     */
+    public List<VoucherOrder> read(Path segment) throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int start = buffer.position();
+                if (buffer.getInt() != MAGIC) {
+                    break;
+                }
+                long orderId = buffer.getLong();
+                long userId = buffer.getLong();
+                long voucherId = buffer.getLong();
+                long createTime = buffer.getLong();
+                int crc = buffer.getInt();
+                if (crc != crc(buffer, start)) {
+                    log.error("本地订单日志记录校验失败，segment={}, offset={}", segment, start);
+                    break;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(orderId);
+                order.setUserId(userId);
+                order.setVoucherId(voucherId);
+                order.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(createTime), ZoneId.systemDefault()));
+                orders.add(order);
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * segment回放完成，删除文件
+     */
+    public void complete(Path segment, List<VoucherOrder> orders) throws IOException {
+        Files.deleteIfExists(segment);
+        for (VoucherOrder order : orders) {
+            pending.remove(order.getVoucherId() + ":" + order.getUserId());
+        }
+    }
+
+    /**
+     * 等待回放的segment数
+     */
+    public int pendingSegments() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        try {
+            synchronized (writeLock) {
+                return listSegments(active == null ? nextSegment : nextSegment - 1).size();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void roll() throws IOException {
+        // 1. 旧的segment写满了，先刷盘
+        if (active != null) {
+            active.force();
+            markFlushed(written);
+        }
+        // 2. 新建segment，mmap之后通道就可以关掉了
+        Path segment = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+        long size = Math.max(RECORD_SIZE, seckillProperties.getJournalSegmentSize().toBytes() / RECORD_SIZE * RECORD_SIZE);
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void writeRecord(MappedByteBuffer buffer, VoucherOrder order) {
+        int start = buffer.position();
+        long createTime = order.getCreateTime() == null ? System.currentTimeMillis()
+                : order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        buffer.putInt(MAGIC);
+        buffer.putLong(order.getId());
+        buffer.putLong(order.getUserId());
+        buffer.putLong(order.getVoucherId());
+        buffer.putLong(createTime);
+        buffer.putInt(crc(buffer, start));
+    }
+
+    private static int crc(ByteBuffer buffer, int start) {
+        // 校验 orderId 到下单时间这32个字节
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 4).limit(start + 36);
+        CRC32 crc32 = new CRC32();
+        crc32.update(body);
+        return (int) crc32.getValue();
+    }
+
+    private void flush() {
+        try {
+            MappedByteBuffer buffer;
+            long target;
+            synchronized (writeLock) {
+                buffer = active;
+                target = written;
+            }
+            synchronized (flushLock) {
+                if (target <= flushed) {
+                    return;
+                }
+            }
+            // 在锁外面force，刷盘期间不挡住新的追加
+            if (buffer != null) {
+                buffer.force();
+            }
+            markFlushed(target);
+        } catch (Exception e) {
+            log.error("本地订单日志刷盘失败", e);
+        }
+    }
+
+    private void markFlushed(long seq) {
+        synchronized (flushLock) {
+            if (seq > flushed) {
+                flushed = seq;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitFlushed(long seq) throws IOException {
+        synchronized (flushLock) {
+            while (flushed < seq) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("等待本地订单日志刷盘被中断", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 编号小于before的segment
+     */
+    private List<Path> listSegments(long before) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                if (segmentNumber(path) < before) {
+                    segments.add(path);
+                }
+            }
+        }
+        // 编号补齐了20位，按文件名排序就是写入顺序
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    private final RateLimiter rateLimiter;
+
+    private final RateLimitProperties rateLimitProperties;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, RateLimitProperties rateLimitProperties) {
+        this.rateLimiter = rateLimiter;
+        this.rateLimitProperties = rateLimitProperties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String path = request.getRequestURI();
+        for (RateLimitProperties.Rule rule : rateLimitProperties.getRules()) {
+            // 1. 找到匹配当前路径的规则
+            if (!pathMatcher.match(rule.getPath(), path)) {
+                continue;
+            }
+
+            // 2. 按维度拼出令牌桶的key
+            String key = rule.getPath() + ":" + rule.getDimension().name().toLowerCase() + ":" + dimensionValue(rule, request);
+
+            // 3. 取不到令牌就拦截
+            if (!rateLimiter.tryAcquire(key, rule)) {
+                response.setStatus(429);
+                response.setContentType("application/json;charset=UTF-8");
+                response.getOutputStream().write(
+                        JSONUtil.toJsonStr(Result.fail("请求太频繁，请稍后再试")).getBytes(StandardCharsets.UTF_8));
+                return false;
+            }
+        }
+
+        // 4. 放行
+        return true;
+    }
+
+    private String dimensionValue(RateLimitProperties.Rule rule, HttpServletRequest request) {
+        switch (rule.getDimension()) {
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                if (user != null) {
+                    return user.getId().toString();
+                }
+                // 没登录的按IP
+                return clientIp(request);
+            case IP:
+                return clientIp(request);
+            default:
+                return "all";
+        }
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        // 1. 不是可信代理转发过来的，请求头都可能是伪造的，只认连接的对端地址
+        String remote = request.getRemoteAddr();
+        if (!isTrustedProxy(remote)) {
+            return remote;
+        }
+
+        // 2. 经过nginx转发时取真实IP：X-Forwarded-For从右往左，每一跳都是前一个代理追加的，
+        //    第一个不是可信代理的就是客户端，再往左的是客户端自己填的
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isNotBlank(forwarded)) {
+            List<String> hops = StrUtil.split(forwarded, ',', true, true);
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                if (!isTrustedProxy(hops.get(i))) {
+                    return hops.get(i);
+                }
+            }
+            return hops.isEmpty() ? remote : hops.get(0);
+        }
+        String ip = request.getHeader("X-Real-IP");
+        if (StrUtil.isNotBlank(ip)) {
+            return ip.trim();
+        }
+        return remote;
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        for (String proxy : rateLimitProperties.getTrustedProxies()) {
+            if (proxy.equals(ip)) {
+                return true;
+            }
+            try {
+                if (proxy.contains("/") && NetUtil.isInRange(ip, proxy)) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                // 不是IPv4地址，只按完全相同匹配
+            }
+        }
+        return false;
+    }
+}
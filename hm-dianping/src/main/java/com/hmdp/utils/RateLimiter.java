@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import com.hmdp.config.RateLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Redis令牌桶的集群限流。令牌按批从Redis预取到本地，大部分请求在本地就能判断。
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new org.springframework.core.io.ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本地预取的令牌，过期作废
+     */
+    private final TimedCache<String, AtomicInteger> localTokens;
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate, RateLimitProperties rateLimitProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        long ttl = rateLimitProperties.getPrefetchTtl().toMillis();
+        this.localTokens = CacheUtil.newTimedCache(ttl);
+        this.localTokens.schedulePrune(ttl);
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @param key 令牌桶key
+     * @param rule 限流规则
+     * @return true:放行，false：限流
+     */
+    public boolean tryAcquire(String key, RateLimitProperties.Rule rule) {
+        // 不生成令牌的规则直接拦截，不用去Redis
+        if (rule.getRate() <= 0) {
+            return false;
+        }
+
+        // 1. 先用本地预取的令牌
+        AtomicInteger local = localTokens.get(key, false);
+        if (local != null && local.decrementAndGet() >= 0) {
+            return true;
+        }
+
+        // 2. 本地用完了，去Redis批量取
+        Long granted;
+        try {
+            granted = stringRedisTemplate.execute(
+                    RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(RedisConstants.RATE_LIMIT_KEY + key),
+                    String.valueOf(rule.getCapacity()),
+                    String.valueOf(rule.getRate()),
+                    String.valueOf(Math.max(1, rule.getPrefetch()))
+            );
+        } catch (Exception e) {
+            // Redis出问题时不能因为限流把正常请求都拦掉
+            log.error("限流脚本执行失败，放行请求，key={}", key, e);
+            return true;
+        }
+        if (granted == null || granted <= 0) {
+            return false;
+        }
+
+        // 3. 自己用掉一个，剩下的放到本地
+        if (granted > 1) {
+            localTokens.put(key, new AtomicInteger((int) (granted - 1)));
+        }
+        return true;
+    }
+}
@@ -1,40 +1,267 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
-    private static final long BEGIN_TIMESTAMP = 1762128000L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final long SECONDS_PER_DAY = 86400;
 
     /**
-     * 序列号位数
+     * 号段模式下后台申请下一个号段的线程
      */
-    private static final int COUNT_BITS = 32;
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-prefetch-", true));
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdProperties idProperties;
+
+    /**
+     * 本地ID的节点编号，15位，由主机名和进程号算出
+     */
+    private static final long LOCAL_NODE_ID =
+            (NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid()).hashCode() & 0x7FFF;
+
+    private long localTimeStamp;
+
+    private long localSequence;
+
+    /**
+     * 当天的日期key，跨天时才重新格式化
+     */
+    private volatile DateKey dateKey = new DateKey(Long.MIN_VALUE, null);
+
+    /**
+     * 号段模式下每个业务前缀的号段
+     */
+    private final Map<String, SegmentBuffer> segments = new ConcurrentHashMap<>();
+
+    @Override
     public long nextId (String keyPrefix) {
         // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowEpochSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowEpochSecond = localEpochSecond();
         long timeStamp = nowEpochSecond - BEGIN_TIMESTAMP;
 
-        // 2.生成序列号
-        // 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        // 2.生成序列号，每个业务每天一个自增序列
+        long count = nextCount(keyPrefix, dateKey(nowEpochSecond));
 
         // 3. 拼接，然后返回
         return (timeStamp << COUNT_BITS) | count;
     }
 
+    /**
+     * 一次INCRBY取一段连续的序列号，批量生成n个ID；号段模式下直接从本地号段取
+     */
+    @Override
+    public long[] nextIds(String keyPrefix, int n) {
+        long nowEpochSecond = localEpochSecond();
+        long timeStamp = nowEpochSecond - BEGIN_TIMESTAMP;
+        DateKey date = dateKey(nowEpochSecond);
+
+        long[] ids = new long[n];
+        if (idProperties.getMode() == IdProperties.Mode.SEGMENT) {
+            for (int i = 0; i < n; i++) {
+                ids[i] = (timeStamp << COUNT_BITS) | nextCount(keyPrefix, date);
+            }
+            return ids;
+        }
+
+        long last = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = (timeStamp << COUNT_BITS) | (last - n + 1 + i);
+        }
+        return ids;
+    }
+
+    private long nextCount(String keyPrefix, DateKey date) {
+        if (idProperties.getMode() == IdProperties.Mode.SEGMENT) {
+            return segments.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date);
+        }
+        return stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date));
+    }
+
+    private static String counterKey(String keyPrefix, DateKey date) {
+        return "icr:" + keyPrefix + ":" + date.date;
+    }
+
+    /**
+     * 和 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 相同：本地时间按UTC换算的秒数，ID的时间戳一直是这么算的
+     */
+    private static long localEpochSecond() {
+        long millis = System.currentTimeMillis();
+        return Math.floorDiv(millis, 1000L) + ZONE.getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+    }
+
+    private DateKey dateKey(long localEpochSecond) {
+        long day = Math.floorDiv(localEpochSecond, SECONDS_PER_DAY);
+        DateKey key = dateKey;
+        if (key.day != day) {
+            // 跨天前取到时间的线程晚到时不把缓存的日期改回前一天
+            boolean newer = day > key.day;
+            key = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            if (newer) {
+                dateKey = key;
+            }
+        }
+        return key;
+    }
+
+    private static class DateKey {
+        private final long day;
+        private final String date;
+
+        private DateKey(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 一段从Redis申请来的序列号 [start, end]，只属于申请时的那一天
+     */
+    private static class Segment {
+        private final DateKey date;
+        private final AtomicLong cursor;
+        private final long end;
+        /**
+         * 发到这个序列号时提前申请下一段
+         */
+        private final long prefetchAt;
+
+        private Segment(DateKey date, long start, long end, long prefetchAt) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务前缀的双缓冲号段：当前号段用CAS发号，用到一定比例时后台申请下一段，
+     * 当前号段用完后直接切换，只有切换时加锁。跨天时旧号段作废，序列号仍然是每天从Redis的计数器里取，
+     * 和逐个INCR的节点混用也不会重复；号段只会往后一天切，带着前一天日期晚到的请求逐个INCR前一天的计数器
+     */
+    private class SegmentBuffer {
+
+        private final String keyPrefix;
+
+        private volatile Segment current;
+
+        /**
+         * 预取中或者已经取到的下一段，切换时由持有锁的线程取走
+         */
+        private CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(DateKey date) {
+            while (true) {
+                Segment segment = current;
+                // 跨天前取到日期的请求晚到了：号段已经是新的一天，不切回去，直接从旧日期的计数器取一个
+                if (segment != null && segment.date.day > date.day) {
+                    return stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date));
+                }
+                if (segment != null && segment.date.day == date.day) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.end) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(date);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void prefetch(DateKey date) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> allocate(date), SEGMENT_PREFETCH_EXECUTOR);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, DateKey date) {
+            // 别的线程已经切换过了，或者已经切到了更新的一天
+            if (current != exhausted || (exhausted != null && exhausted.date.day > date.day)) {
+                return;
+            }
+            // 1. 优先用预取的号段，预取失败或者已经跨天就同步申请
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.warn("预取ID号段失败，prefix={}", keyPrefix, e);
+                }
+                next = null;
+            }
+            if (segment == null || segment.date.day != date.day) {
+                segment = allocate(date);
+            }
+            current = segment;
+        }
+
+        private Segment allocate(DateKey date) {
+            int step = Math.max(1, idProperties.getSegmentStep());
+            long end = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+            long start = end - step + 1;
+            long prefetchAt = start + (long) (step * (1 - idProperties.getSegmentPrefetchRatio()));
+            return new Segment(date, start, end, Math.min(prefetchAt, end));
+        }
+    }
+
+    /**
+     * Redis不可用时在本地生成ID，时间戳部分不变；序列号的最高位置1，和Redis每天的自增序列号区分开，
+     * 中间15位是节点编号，低16位是本节点每秒内的序列号，一秒超过65536个就等到下一秒
+     */
+    @Override
+    public synchronized long nextLocalId() {
+        long timeStamp = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        if (timeStamp > localTimeStamp) {
+            localTimeStamp = timeStamp;
+            localSequence = 0;
+        } else if (localSequence > 0xFFFF) {
+            while (timeStamp <= localTimeStamp) {
+                Thread.yield();
+                timeStamp = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+            }
+            localTimeStamp = timeStamp;
+            localSequence = 0;
+        }
+        long count = (1L << (COUNT_BITS - 1)) | (LOCAL_NODE_ID << 16) | localSequence++;
+        return (localTimeStamp << COUNT_BITS) | count;
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2025, 11, 3, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
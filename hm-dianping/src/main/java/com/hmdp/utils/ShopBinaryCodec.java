@@ -0,0 +1,201 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 手写的 Shop 二进制格式，只支持 Shop，其他类型由 CacheClient 改用JSON。
+ * <p>
+ * 开头2字节是非空字段的位图，之后按字段顺序只写非空字段：整数用zigzag变长编码，double固定8字节，
+ * 字符串是变长长度 + UTF-8，时间是秒数 + 纳秒。加字段只能加在最后，老数据缺的字段读出来是null；
+ * 删字段、改顺序要换一个id
+ */
+public class ShopBinaryCodec implements CacheCodec {
+
+    public static final byte ID = 3;
+
+    private static final int ID_FIELD = 1;
+    private static final int NAME = 1 << 1;
+    private static final int TYPE_ID = 1 << 2;
+    private static final int IMAGES = 1 << 3;
+    private static final int AREA = 1 << 4;
+    private static final int ADDRESS = 1 << 5;
+    private static final int X = 1 << 6;
+    private static final int Y = 1 << 7;
+    private static final int AVG_PRICE = 1 << 8;
+    private static final int SOLD = 1 << 9;
+    private static final int COMMENTS = 1 << 10;
+    private static final int SCORE = 1 << 11;
+    private static final int OPEN_HOURS = 1 << 12;
+    private static final int CREATE_TIME = 1 << 13;
+    private static final int UPDATE_TIME = 1 << 14;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return type == Shop.class;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Shop shop = (Shop) value;
+        int mask = (shop.getId() != null ? ID_FIELD : 0)
+                | (shop.getName() != null ? NAME : 0)
+                | (shop.getTypeId() != null ? TYPE_ID : 0)
+                | (shop.getImages() != null ? IMAGES : 0)
+                | (shop.getArea() != null ? AREA : 0)
+                | (shop.getAddress() != null ? ADDRESS : 0)
+                | (shop.getX() != null ? X : 0)
+                | (shop.getY() != null ? Y : 0)
+                | (shop.getAvgPrice() != null ? AVG_PRICE : 0)
+                | (shop.getSold() != null ? SOLD : 0)
+                | (shop.getComments() != null ? COMMENTS : 0)
+                | (shop.getScore() != null ? SCORE : 0)
+                | (shop.getOpenHours() != null ? OPEN_HOURS : 0)
+                | (shop.getCreateTime() != null ? CREATE_TIME : 0)
+                | (shop.getUpdateTime() != null ? UPDATE_TIME : 0);
+        Writer out = new Writer(128);
+        out.write(mask >>> 8);
+        out.write(mask);
+        if (shop.getId() != null) out.writeLong(shop.getId());
+        if (shop.getName() != null) out.writeString(shop.getName());
+        if (shop.getTypeId() != null) out.writeLong(shop.getTypeId());
+        if (shop.getImages() != null) out.writeString(shop.getImages());
+        if (shop.getArea() != null) out.writeString(shop.getArea());
+        if (shop.getAddress() != null) out.writeString(shop.getAddress());
+        if (shop.getX() != null) out.writeDouble(shop.getX());
+        if (shop.getY() != null) out.writeDouble(shop.getY());
+        if (shop.getAvgPrice() != null) out.writeLong(shop.getAvgPrice());
+        if (shop.getSold() != null) out.writeLong(shop.getSold());
+        if (shop.getComments() != null) out.writeLong(shop.getComments());
+        if (shop.getScore() != null) out.writeLong(shop.getScore());
+        if (shop.getOpenHours() != null) out.writeString(shop.getOpenHours());
+        if (shop.getCreateTime() != null) out.writeTime(shop.getCreateTime());
+        if (shop.getUpdateTime() != null) out.writeTime(shop.getUpdateTime());
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        Reader in = new Reader(bytes, offset, offset + length);
+        int mask = (in.read() << 8) | in.read();
+        Shop shop = new Shop();
+        if ((mask & ID_FIELD) != 0) shop.setId(in.readLong());
+        if ((mask & NAME) != 0) shop.setName(in.readString());
+        if ((mask & TYPE_ID) != 0) shop.setTypeId(in.readLong());
+        if ((mask & IMAGES) != 0) shop.setImages(in.readString());
+        if ((mask & AREA) != 0) shop.setArea(in.readString());
+        if ((mask & ADDRESS) != 0) shop.setAddress(in.readString());
+        if ((mask & X) != 0) shop.setX(in.readDouble());
+        if ((mask & Y) != 0) shop.setY(in.readDouble());
+        if ((mask & AVG_PRICE) != 0) shop.setAvgPrice(in.readLong());
+        if ((mask & SOLD) != 0) shop.setSold((int) in.readLong());
+        if ((mask & COMMENTS) != 0) shop.setComments((int) in.readLong());
+        if ((mask & SCORE) != 0) shop.setScore((int) in.readLong());
+        if ((mask & OPEN_HOURS) != 0) shop.setOpenHours(in.readString());
+        if ((mask & CREATE_TIME) != 0) shop.setCreateTime(in.readTime());
+        if ((mask & UPDATE_TIME) != 0) shop.setUpdateTime(in.readTime());
+        return type.cast(shop);
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+
+        private Writer(int size) {
+            super(size);
+        }
+
+        void writeLong(long v) {
+            // zigzag：绝对值小的负数也只占1个字节
+            long zigzag = (v << 1) ^ (v >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            write((int) zigzag);
+        }
+
+        void writeDouble(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (bits >>> shift));
+            }
+        }
+
+        void writeString(String v) {
+            byte[] utf8 = v.getBytes(StandardCharsets.UTF_8);
+            writeLong(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+
+        void writeTime(LocalDateTime v) {
+            writeLong(v.toEpochSecond(ZoneOffset.UTC));
+            writeLong(v.getNano());
+        }
+    }
+
+    private static class Reader {
+
+        private final byte[] bytes;
+
+        private final int end;
+
+        private int pos;
+
+        private Reader(byte[] bytes, int offset, int end) {
+            this.bytes = bytes;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        int read() {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Shop二进制数据不完整");
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        long readLong() {
+            long zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | read();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        String readString() {
+            int length = (int) readLong();
+            if (length < 0 || pos + length > end) {
+                throw new IllegalArgumentException("Shop二进制数据不完整");
+            }
+            String v = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return v;
+        }
+
+        LocalDateTime readTime() {
+            long seconds = readLong();
+            int nanos = (int) readLong();
+            return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 滑动窗口的Count-Min Sketch，估计每个key最近一个窗口内的访问次数，内存和key的个数无关。
+ * <p>
+ * 窗口分成若干个时间片，每个时间片一个 depth x width 的计数矩阵，计数时加到当前时间片，
+ * 估计值是每一行在所有时间片上的和取最小值；时间片轮转时清空最老的一片。
+ * 估计值只会偏大不会偏小，并发下清空和计数之间没有加锁，只是近似值
+ */
+public class SlidingCountMinSketch {
+
+    private final int depth;
+
+    private final int width;
+
+    private final long slotMillis;
+
+    private final AtomicIntegerArray[] slots;
+
+    /**
+     * 当前时间片的序号（从1970年起按时间片长度计）
+     */
+    private volatile long currentSlot;
+
+    public SlidingCountMinSketch(int depth, int width, int slotCount, long windowMillis) {
+        this.depth = Math.max(1, depth);
+        this.width = Math.max(1, width);
+        this.slotMillis = Math.max(1, windowMillis / Math.max(1, slotCount));
+        this.slots = new AtomicIntegerArray[Math.max(1, slotCount)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new AtomicIntegerArray(this.depth * this.width);
+        }
+        this.currentSlot = System.currentTimeMillis() / slotMillis;
+    }
+
+    /**
+     * 计数加一，返回加完之后窗口内的估计值
+     */
+    public int add(String key) {
+        AtomicIntegerArray slot = slots[(int) (rotate() % slots.length)];
+        long h1 = mix(key.hashCode());
+        long h2 = mix(h1);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = index(h1, h2, i);
+            slot.incrementAndGet(index);
+            min = Math.min(min, sum(index));
+        }
+        return min;
+    }
+
+    /**
+     * 窗口内的估计值，不计数
+     */
+    public int estimate(String key) {
+        rotate();
+        long h1 = mix(key.hashCode());
+        long h2 = mix(h1);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, sum(index(h1, h2, i)));
+        }
+        return min;
+    }
+
+    public long getSlotMillis() {
+        return slotMillis;
+    }
+
+    private int sum(int index) {
+        int sum = 0;
+        for (AtomicIntegerArray slot : slots) {
+            sum += slot.get(index);
+        }
+        return sum;
+    }
+
+    /**
+     * 时间进入新的时间片时清空它（上一轮留下的计数），跳过了几片就清几片
+     */
+    private long rotate() {
+        long now = System.currentTimeMillis() / slotMillis;
+        if (now > currentSlot) {
+            synchronized (this) {
+                long last = currentSlot;
+                for (long s = last + 1; s <= now && s <= last + slots.length; s++) {
+                    AtomicIntegerArray slot = slots[(int) (s % slots.length)];
+                    for (int i = 0; i < slot.length(); i++) {
+                        slot.set(i, 0);
+                    }
+                }
+                if (now > currentSlot) {
+                    currentSlot = now;
+                }
+            }
+        }
+        return currentSlot;
+    }
+
+    /**
+     * 第row行的计数器在数组里的下标，每行占width个
+     */
+    private int index(long h1, long h2, int row) {
+        return row * width + (int) (((h1 + row * h2) & Long.MAX_VALUE) % width);
+    }
+
+    /**
+     * splitmix64的混淆函数
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,240 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花算法的ID生成器，hmdp.id.mode=snowflake 时代替 RedisIdWorker，发号完全在本地，不访问Redis。
+ * <p>
+ * 高32位和 RedisIdWorker 一样是秒级时间戳，低32位是 毫秒(10位) + workerId(10位) + 毫秒内序列号(12位)，
+ * 整体按时间递增。workerId启动时从Redis租用，后台定时续期；续期失败时继续用原来的workerId发号，
+ * Redis不可用期间别的节点也租不到它，恢复后发现被别人占用了才换一个新的。
+ * <p>
+ * 时钟回拨时不等待，继续在上一次的毫秒上发号，序列号用完了就把逻辑时钟往前推一毫秒，
+ * 直到系统时钟追上来；每个workerId发过的最大时间戳记在Redis里，换节点、重启后从它之后开始发号
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final int WORKER_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final ScheduledExecutorService HEARTBEAT_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-worker-heartbeat-", true));
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IdProperties idProperties;
+
+    /**
+     * 租约持有者，每次启动都不同，重启后不会误续上一次的租约
+     */
+    private final String owner = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid() + "-" + UUID.fastUUID().toString(true);
+
+    private long workerId = -1;
+
+    /**
+     * 最近一次发号用的毫秒时间戳（本地时间按UTC换算），时钟回拨时它会跑在系统时钟前面
+     */
+    private long lastMillis;
+
+    private long sequence;
+
+    /**
+     * 租约的本地到期时间，超过了说明一直续期失败
+     */
+    private volatile long leaseDeadline;
+
+    private volatile boolean leaseExpiredLogged;
+
+    /**
+     * 正处在时钟回拨中，只在开始时记一次日志
+     */
+    private boolean clockBackward;
+
+    @PostConstruct
+    private void init() {
+        // 启动时必须租到workerId，租不到就不能发号
+        if (!lease()) {
+            throw new IllegalStateException("没有可用的workerId，最多" + MAX_WORKERS + "个节点");
+        }
+        long interval = idProperties.getWorkerHeartbeatInterval().toMillis();
+        HEARTBEAT_EXECUTOR.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        HEARTBEAT_EXECUTOR.shutdown();
+        try {
+            // 释放租约，同时记下发到的时间戳，下一个拿到这个workerId的节点从它之后开始
+            callLease(currentWorkerId(), 0, currentMillis());
+        } catch (Exception e) {
+            log.warn("释放workerId失败，workerId={}", currentWorkerId(), e);
+        }
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        // 1. 当前时间，回拨了就继续用上一次的时间
+        long millis = localEpochMilli();
+        if (millis < lastMillis) {
+            if (!clockBackward) {
+                clockBackward = true;
+                log.warn("系统时钟回拨{}ms，按逻辑时钟继续发号", lastMillis - millis);
+            }
+            millis = lastMillis;
+        } else if (millis > lastMillis) {
+            clockBackward = false;
+        }
+
+        // 2. 同一毫秒内序列号递增，用完了逻辑时钟前进一毫秒
+        if (millis == lastMillis) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                millis = lastMillis + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = millis;
+
+        // 3. 租约一直续不上时照常发号，只提醒一次
+        if (!leaseExpiredLogged && System.currentTimeMillis() > leaseDeadline) {
+            leaseExpiredLogged = true;
+            log.error("workerId租约已经过期，继续使用workerId={}发号，等Redis恢复后续期", workerId);
+        }
+
+        // 4. 拼接：秒 << 32 | 毫秒 << 22 | workerId << 12 | 序列号
+        long timeStamp = Math.floorDiv(millis, 1000L) - BEGIN_TIMESTAMP;
+        long millisOfSecond = Math.floorMod(millis, 1000L);
+        return (timeStamp << COUNT_BITS)
+                | (millisOfSecond << (WORKER_BITS + SEQUENCE_BITS))
+                | (workerId << SEQUENCE_BITS)
+                | sequence;
+    }
+
+    /**
+     * 雪花ID本身不依赖Redis
+     */
+    @Override
+    public long nextLocalId() {
+        return nextId(null);
+    }
+
+    /**
+     * 当前使用的workerId
+     */
+    public synchronized long currentWorkerId() {
+        return workerId;
+    }
+
+    private void heartbeat() {
+        try {
+            long id = currentWorkerId();
+            long last = callLease(id, idProperties.getWorkerLeaseTtl().toMillis(), currentMillis());
+            if (last >= 0) {
+                renewed();
+                return;
+            }
+            // Redis数据丢失等情况下workerId被别的节点租走了，换一个
+            log.error("workerId={}已经被其他节点占用，重新申请", id);
+            if (!lease()) {
+                log.error("没有可用的workerId，继续使用workerId={}", id);
+            }
+        } catch (Exception e) {
+            log.warn("workerId续期失败，workerId={}", currentWorkerId(), e);
+        }
+    }
+
+    /**
+     * 从随机位置开始依次尝试，租到一个空闲的workerId
+     */
+    private boolean lease() {
+        int start = RandomUtil.randomInt(MAX_WORKERS);
+        long ttl = idProperties.getWorkerLeaseTtl().toMillis();
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            long last = callLease(id, ttl, 0);
+            if (last < 0) {
+                continue;
+            }
+            synchronized (this) {
+                workerId = id;
+                // 上一个使用者发到过的时间戳之前不能再发
+                lastMillis = Math.max(lastMillis, last);
+                sequence = MAX_SEQUENCE;
+            }
+            renewed();
+            log.info("租到workerId={}", id);
+            return true;
+        }
+        return false;
+    }
+
+    private void renewed() {
+        // 少算一个心跳间隔，保守一点
+        leaseDeadline = System.currentTimeMillis() + idProperties.getWorkerLeaseTtl().toMillis()
+                - idProperties.getWorkerHeartbeatInterval().toMillis();
+        leaseExpiredLogged = false;
+    }
+
+    private long callLease(long id, long ttl, long usedMillis) {
+        Long last = stringRedisTemplate.execute(LEASE_SCRIPT,
+                Arrays.asList(RedisConstants.ID_WORKER_KEY + id, RedisConstants.ID_WORKER_LAST_KEY + id),
+                owner, String.valueOf(ttl), String.valueOf(usedMillis));
+        return last == null ? -1 : last;
+    }
+
+    private synchronized long currentMillis() {
+        return lastMillis;
+    }
+
+    /**
+     * 本地时间按UTC换算的毫秒数，和 RedisIdWorker 的秒级时间戳保持一致
+     */
+    private static long localEpochMilli() {
+        long millis = System.currentTimeMillis();
+        return millis + ZONE.getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L;
+    }
+}
@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM内的秒杀券售罄标记，售罄之后的请求不用再去Redis跑一遍Lua脚本。
+ * 标记和清除都会通过Redis频道广播给其他节点；为了防止漏掉消息，本地标记只在有效期内生效。
+ */
+@Slf4j
+@Component
+public class SoldOutMarker implements MessageListener {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESTOCK = "restock:";
+
+    /**
+     * voucherId -> 标记失效的时间戳
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    /**
+     * voucherId:分片 -> 标记失效的时间戳。分片券某个分片卖完之后，本节点的请求直接去下一个分片，
+     * 只在本地生效不广播，其他节点各自试一次就知道了
+     */
+    private final Map<String, Long> shardSoldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            // 过期了，放一个请求去Redis确认一下
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isShardSoldOut(Long voucherId, int shard) {
+        String key = voucherId + ":" + shard;
+        Long expireAt = shardSoldOut.get(key);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            shardSoldOut.remove(key, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void markShardSoldOut(Long voucherId, int shard) {
+        shardSoldOut.put(voucherId + ":" + shard, System.currentTimeMillis() + seckillProperties.getSoldOutTtl().toMillis());
+    }
+
+    /**
+     * 本地标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        Long previous = markLocal(voucherId);
+        // 只有本地第一次标记时才广播，避免同一时刻大量请求都去发消息
+        if (previous == null || previous < System.currentTimeMillis()) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存回补后清除售罄标记并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        clearLocal(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                markLocal(Long.valueOf(body.substring(SOLD_OUT.length())));
+            } else if (body.startsWith(RESTOCK)) {
+                clearLocal(Long.valueOf(body.substring(RESTOCK.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法识别的售罄消息：{}", body);
+        }
+    }
+
+    private void clearLocal(Long voucherId) {
+        soldOut.remove(voucherId);
+        String prefix = voucherId + ":";
+        shardSoldOut.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private Long markLocal(Long voucherId) {
+        return soldOut.put(voucherId, System.currentTimeMillis() + seckillProperties.getSoldOutTtl().toMillis());
+    }
+}
@@ -0,0 +1,7 @@
+-- 把本节点的布隆过滤器位图并到Redis里，再把合并结果返回给本节点
+-- KEYS[1] 布隆过滤器位图，KEYS[2] 临时key
+-- ARGV[1] 本节点的位图
+redis.call('set', KEYS[2], ARGV[1])
+redis.call('bitop', 'or', KEYS[1], KEYS[1], KEYS[2])
+redis.call('del', KEYS[2])
+return redis.call('get', KEYS[1])
@@ -0,0 +1,25 @@
+-- 申请、续期或者释放一个workerId
+-- KEYS[1] 租约 id:worker:{n}，KEYS[2] 这个workerId发过的最大时间戳 id:worker:last:{n}，不过期
+-- ARGV[1] 持有者，ARGV[2] 租期毫秒，为0表示释放，ARGV[3] 持有者已经用到的时间戳
+-- 返回 -1 表示被别人持有，否则返回这个workerId发过的最大时间戳，新的持有者要从它之后开始发号
+
+local owner = redis.call('get', KEYS[1])
+if (owner and owner ~= ARGV[1]) then
+    return -1
+end
+
+-- 1. 记录用到的时间戳，只增不减
+local last = tonumber(redis.call('get', KEYS[2])) or 0
+local used = tonumber(ARGV[3])
+if (used > last) then
+    redis.call('set', KEYS[2], ARGV[3])
+    last = used
+end
+
+-- 2. 续期，或者释放
+if (tonumber(ARGV[2]) > 0) then
+    redis.call('set', KEYS[1], ARGV[1], 'px', ARGV[2])
+elseif (owner) then
+    redis.call('del', KEYS[1])
+end
+return last
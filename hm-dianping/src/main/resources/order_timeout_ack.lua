@@ -0,0 +1,26 @@
+-- 超时订单在数据库取消之后，把库存还给Redis，并从定时桶里删除
+-- ARGV[1] 取消的订单数 n，ARGV[2..2n+1] 每个订单的 voucherId, userId
+-- ARGV[2n+2..] 处理完的 桶号, 订单id，包括没取消成功的（已经支付或者已经取消过的）
+
+local n = tonumber(ARGV[1])
+
+-- 1. 归还库存，分片券还给用户所在的分片；库存key已经不存在的老券不用还
+for i = 0, n - 1 do
+    local voucherId = ARGV[2 + i * 2]
+    local userId = tonumber(ARGV[3 + i * 2])
+    local stockKey = 'seckill:stock:' .. voucherId
+    local shards = tonumber(redis.call('get', 'seckill:shards:' .. voucherId))
+    if (shards ~= nil and shards > 1) then
+        stockKey = stockKey .. ':' .. (userId % shards)
+    end
+    if (redis.call('exists', stockKey) == 1) then
+        redis.call('incrby', stockKey, 1)
+    end
+end
+
+-- 2. 从定时桶里删除
+for i = 2 * n + 2, #ARGV, 2 do
+    redis.call('zrem', 'order:timeout:' .. ARGV[i], ARGV[i + 1])
+end
+
+return n
@@ -0,0 +1,40 @@
+-- 取出到期未支付的订单。订单按截止时间分桶放在 order:timeout:{桶号} 的ZSET里，score是截止时间，
+-- 有订单的桶号记在桶索引里。取出的订单不直接删除，而是把score推后一个租期，处理完再删；
+-- 处理的节点挂了，租期过后会被重新取出
+-- KEYS[1] 桶索引ZSET，member和score都是桶号
+-- ARGV[1] 当前时间毫秒，ARGV[2] 桶的宽度毫秒，ARGV[3] 最多取几个，ARGV[4] 租期毫秒，ARGV[5] 最多扫描几个桶
+-- 返回 {桶号1, 订单id1, 桶号2, 订单id2, ...}
+
+local now = tonumber(ARGV[1])
+local width = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+local lease = tonumber(ARGV[4])
+local maxScan = tonumber(ARGV[5])
+
+-- 1. 截止时间已经到了的桶
+local buckets = redis.call('zrangebyscore', KEYS[1], '-inf', math.floor(now / width), 'limit', 0, maxScan)
+
+local result = {}
+local count = 0
+for _, bucket in ipairs(buckets) do
+    if (count >= limit) then
+        break
+    end
+
+    -- 2. 取出到期的订单，推后一个租期
+    local key = 'order:timeout:' .. bucket
+    local members = redis.call('zrangebyscore', key, '-inf', now, 'limit', 0, limit - count)
+    for i = 1, #members do
+        redis.call('zadd', key, now + lease, members[i])
+        result[#result + 1] = bucket
+        result[#result + 1] = members[i]
+    end
+    count = count + #members
+
+    -- 3. 桶里的订单都处理完了，从索引里删掉
+    if (redis.call('zcard', key) == 0) then
+        redis.call('zrem', KEYS[1], bucket)
+    end
+end
+
+return result
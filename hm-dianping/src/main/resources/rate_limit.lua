@@ -0,0 +1,37 @@
+-- 令牌桶限流，一次最多取 ARGV[3] 个令牌，返回实际取到的个数
+-- KEYS[1] 令牌桶key
+-- ARGV[1] 桶容量，ARGV[2] 每秒生成的令牌数，为0时拦截所有请求，ARGV[3] 本次要取的令牌数
+
+local key = KEYS[1]
+local capacity = tonumber(ARGV[1])
+local rate = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+
+if (rate <= 0) then
+    return 0
+end
+
+-- 1. 用Redis的时钟，各个节点的时间不一致也不影响
+if (redis.replicate_commands) then
+    redis.replicate_commands()
+end
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 2. 按上次取令牌到现在的时间补充令牌，不超过容量
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+if (now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+end
+
+-- 3. 能给多少给多少
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+
+-- 4. 保存，桶补满之后就没必要留着了
+redis.call('hmset', key, 'tokens', tokens, 'ts', now)
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+
+return granted
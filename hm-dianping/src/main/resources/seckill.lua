@@ -1,41 +1,220 @@
 -- 1. 参数列表
+-- KEYS 只抢一张分片券时由调用方传入：KEYS[1] 自己分片的下单用户集合，KEYS[2] 自己分片的下单用户位图，
+-- KEYS[3..n] 依次尝试的库存分片（自己的分片在前，本地已经知道卖完的分片不传）；其他情况不传，key在脚本里拼
 
--- 1.1 优惠券id
-local voucherId = ARGV[1]
+
+-- 1.1 优惠券id，一次抢多张券时用逗号分隔
+local voucherIds = ARGV[1]
 
 -- 1.2 用户id
 local userId = ARGV[2]
 
--- 1.3 订单id
-local orderId = ARGV[3]
+-- 1.3 订单id，和优惠券id一一对应，多张券时用逗号分隔
+local orderIds = ARGV[3]
+
+-- 1.4 订单状态的有效期（秒），不传则不记录订单状态
+local statusTtl = tonumber(ARGV[4])
+
+-- 1.5 一次抢多张券时的下单方式：all 全部能抢到才下单，best 能抢到几张下几张，返回每张券的结果码；
+-- 不传或者为空表示只抢一张券，直接返回结果码
+local mode = ARGV[5]
+
+-- 2. 公共数据
+-- 2.1 位图的偏移量上限，userId超出的用户仍然记在集合里，避免一个大userId撑出一个巨大的位图
+-- 必须和 RedisConstants.SECKILL_BUYER_BITMAP_LIMIT 保持一致
+local bitmapLimit = 134217728
+
+local uid = tonumber(userId)
+
+-- 2.2 当前时间，用Redis自己的时钟，各个节点的时间不一致也不影响，一次调用只取一次
+local now = nil
+local function currentMillis()
+    if (now == nil) then
+        if (redis.replicate_commands) then
+            redis.replicate_commands()
+        end
+        local t = redis.call('time')
+        now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    end
+    return now
+end
+
+-- 2.3 判断用户是否下过单
+local function isBuyer(order)
+    if (order.useBitmap) then
+        return redis.call('getbit', order.bitmapKey, order.offset) == 1
+    end
+    return redis.call('sismember', order.orderKey, userId) == 1
+end
+
+-- 3. 校验一张券能不能抢，只读不写，多张券时先全部校验完再统一扣减
+-- 返回 0 和扣减需要的信息，或者失败码：1 库存不足，2 重复下单，3 尚未开始，4 已经结束
+local function check(voucherId)
+    -- 3.1 数据key
+    local order = {
+        voucherId = voucherId,
+        -- 库存key
+        stockKey = 'seckill:stock:' .. voucherId,
+        -- 订单key
+        orderKey = 'seckill:order:' .. voucherId,
+        -- 位图方式下单用户的key
+        bitmapKey = 'seckill:buyers:' .. voucherId,
+        offset = uid
+    }
+
+    -- 3.2 库存分片数，没有设置说明没有分片
+    local shards = tonumber(redis.call('get', 'seckill:shards:' .. voucherId))
+
+    -- 3.3 判断秒杀时间，没有缓存时间的老数据不做判断
+    -- seckill:time:{id} 保存开始、结束时间的毫秒时间戳，以及下单用户的存储方式和过期时间
+    local meta = redis.call('hmget', 'seckill:time:' .. voucherId, 'begin', 'end', 'layout', 'expireAt')
+    if (meta[1]) then
+        if (currentMillis() < tonumber(meta[1])) then
+            -- 秒杀尚未开始，返回 3
+            return 3
+        end
+        if (currentMillis() > tonumber(meta[2])) then
+            -- 秒杀已经结束，返回 4
+            return 4
+        end
+    end
+
+    -- 3.4 下单用户的位置：分片时按userId固定到自己的分片，位图偏移量用 userId / 分片数，各分片的位图都是紧凑的
+    local home = nil
+    if (shards ~= nil and shards > 1) then
+        home = uid % shards
+        order.offset = math.floor(uid / shards)
+        order.orderKey = order.orderKey .. ':' .. home
+        order.bitmapKey = order.bitmapKey .. ':' .. home
+    end
+    order.useBitmap = meta[3] == 'bitmap' and order.offset < bitmapLimit
+    order.expireAt = tonumber(meta[4])
 
--- 2. 数据key
--- 2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
+    if (home ~= nil) then
+        if (#KEYS > 0) then
+            order.orderKey = KEYS[1]
+            order.bitmapKey = KEYS[2]
+        end
+        if (isBuyer(order)) then
+            -- 用户已下单，返回 2
+            return 2
+        end
 
--- 2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+        -- 调用方传入了库存分片，按传入的顺序找有库存的分片，记下前面跳过了几个卖完的分片
+        if (#KEYS > 0) then
+            for i = 3, #KEYS do
+                if ((tonumber(redis.call('get', KEYS[i])) or 0) > 0) then
+                    order.stockKey = KEYS[i]
+                    order.skipped = i - 3
+                    return 0, order
+                end
+            end
+            -- 传入的分片都卖完了，返回 1
+            return 1
+        end
 
--- 3.脚本业务
--- 3.1 判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 库存不足，返回 1
-    return 1
+        -- 一次抢多张券时先扣自己分片的库存，自己分片卖完了再依次去相邻分片借
+        for i = 0, shards - 1 do
+            local shardStockKey = order.stockKey .. ':' .. ((home + i) % shards)
+            if ((tonumber(redis.call('get', shardStockKey)) or 0) > 0) then
+                order.stockKey = shardStockKey
+                return 0, order
+            end
+        end
+
+        -- 所有分片都卖完了，返回 1
+        return 1
+    end
+
+    -- 3.5 判断库存是否充足 get stockKey
+    if ((tonumber(redis.call('get', order.stockKey)) or 0) <= 0) then
+        -- 库存不足，返回 1
+        return 1
+    end
+
+    -- 3.6 判断用户是否下单
+    if (isBuyer(order)) then
+        -- 用户已下单，返回 2
+        return 2
+    end
+
+    return 0, order
 end
 
--- 3.2 判断用户是否下单
-if (redis.call('sismember', orderKey, userId) == 1) then
-    -- 用户已下单，返回 2
-    return 2
+-- 4. 扣减库存、保存下单用户、发送订单消息
+local function apply(order, orderId)
+    -- 4.1 扣减库存 incrby stockKey -1
+    redis.call('incrby', order.stockKey, -1)
+
+    -- 4.2 下单（保存用户）
+    local key = order.orderKey
+    if (order.useBitmap) then
+        redis.call('setbit', order.bitmapKey, order.offset, 1)
+        key = order.bitmapKey
+    else
+        redis.call('sadd', order.orderKey, userId)
+    end
+    -- 秒杀结束后下单用户就没用了，按结束时间设置过期，只在第一次写入时设置
+    if (order.expireAt and redis.call('pttl', key) == -1) then
+        redis.call('pexpireat', key, order.expireAt)
+    end
+
+    -- 4.3 发送消息到队列中，XADD stream.orders * key value [key value ...]，同时记录订单状态为排队中
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', order.voucherId, 'id', orderId)
+    if (statusTtl) then
+        local statusKey = 'order:status:' .. orderId
+        redis.call('hmset', statusKey, 'status', 'QUEUED', 'userId', userId)
+        redis.call('expire', statusKey, statusTtl)
+    end
 end
 
--- 3.3 用户没下过单，扣减库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
+-- 5. 脚本业务
+local ids = {}
+for id in string.gmatch(voucherIds, '[^,]+') do
+    ids[#ids + 1] = id
+end
+local oids = {}
+for id in string.gmatch(orderIds, '[^,]+') do
+    oids[#oids + 1] = id
+end
+
+-- 5.1 一张券，返回结果码；分片券跳过了卖完的分片时返回 -跳过的分片数，调用方据此标记这些分片售罄
+if (mode == nil or mode == '') then
+    local code, order = check(ids[1])
+    if (code ~= 0) then
+        return code
+    end
+    apply(order, oids[1])
+    if (order.skipped and order.skipped > 0) then
+        return -order.skipped
+    end
+    return 0
+end
 
--- 3.4 下单（保存用户）
-redis.call('sadd', orderKey, userId)
+-- 5.2 多张券，先全部校验，返回每张券的结果码
+local codes = {}
+local orders = {}
+local failed = false
+for i = 1, #ids do
+    codes[i], orders[i] = check(ids[i])
+    if (codes[i] ~= 0) then
+        failed = true
+    end
+end
 
--- 3.5 发送消息到队列中，XADD stream.orders * key value [key value ...]
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 5.3 要求全部成功却有券抢不到，一张都不扣，能抢到的券返回 5
+if (failed and mode == 'all') then
+    for i = 1, #codes do
+        if (codes[i] == 0) then
+            codes[i] = 5
+        end
+    end
+    return codes
+end
 
-return 0
\ No newline at end of file
+for i = 1, #ids do
+    if (codes[i] == 0) then
+        apply(orders[i], oids[i])
+    end
+end
+return codes
@@ -0,0 +1,79 @@
+-- 对账修复秒杀库存，整个比较和修复在一次脚本里完成，不会和并发的秒杀请求交错
+-- KEYS[1..n] 库存key（分片时为各个分片），KEYS[n+1..2n] 对应的下单用户集合，KEYS[2n+1..3n] 对应的下单用户位图
+-- ARGV[1] 分片数 n，ARGV[2] 数据库库存，ARGV[3] 数据库中的下单用户数
+
+local shards = tonumber(ARGV[1])
+local dbStock = tonumber(ARGV[2])
+local dbBuyers = tonumber(ARGV[3])
+
+-- 1. 读取Redis中的库存，所有分片都不存在说明key丢了
+local stock = 0
+local missing = true
+local values = {}
+for i = 1, shards do
+    local value = redis.call('get', KEYS[i])
+    values[i] = tonumber(value) or 0
+    if (value) then
+        missing = false
+        stock = stock + values[i]
+    end
+end
+
+-- 2. 读取Redis中的下单用户数，位图方式下超出偏移量上限的用户在集合里，两边加起来
+local buyers = 0
+for i = 1, shards do
+    buyers = buyers + redis.call('scard', KEYS[shards + i]) + redis.call('bitcount', KEYS[shards * 2 + i])
+end
+
+-- 3. Redis里比数据库多出来的用户是已经抢到、还没落库的订单，要从库存里扣掉
+local expected = dbStock - (buyers - dbBuyers)
+if (expected < 0) then
+    expected = 0
+end
+
+-- 4. 差多少补多少，用incrby不会覆盖掉分片之间现有的分布；差额平摊到各个分片，
+--    不能全补到一个分片上，否则其他分片的用户都要去借这一个分片的库存
+local delta = expected - stock
+if (missing or delta ~= 0) then
+    local adds = {}
+    if (delta >= 0) then
+        -- 4.1 补库存：每个分片 delta / n，余数从前往后每个分片多补1
+        for i = 1, shards do
+            adds[i] = math.floor(delta / shards)
+            if (i <= delta % shards) then
+                adds[i] = adds[i] + 1
+            end
+        end
+    else
+        -- 4.2 扣库存：每个分片最多扣到0，先按平均数扣，扣不够的部分再从还有库存的分片里扣
+        local need = -delta
+        for i = 1, shards do
+            local take = math.min(values[i], math.ceil(need / (shards - i + 1)))
+            if (take < 0) then
+                take = 0
+            end
+            adds[i] = -take
+            need = need - take
+        end
+        for i = 1, shards do
+            if (need <= 0) then
+                break
+            end
+            local take = math.min(values[i] + adds[i], need)
+            if (take > 0) then
+                adds[i] = adds[i] - take
+                need = need - take
+            end
+        end
+    end
+    for i = 1, shards do
+        if (adds[i] ~= 0 or missing) then
+            redis.call('incrby', KEYS[i], adds[i])
+        end
+    end
+end
+
+if (missing) then
+    stock = -1
+end
+return {stock, buyers, expected}
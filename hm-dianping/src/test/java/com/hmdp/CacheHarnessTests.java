@@ -0,0 +1,453 @@
+package com.hmdp;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 店铺缓存的端到端用例：用内嵌Redis和H2启动整个应用，覆盖进程内缓存失效、布隆过滤器、
+ * 并发未命中合并、缓存值编码、批量查询和热点key。用例里自己构造的CacheClient用完都要close
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class CacheHarnessTests {
+
+    private static RedisServer redisServer;
+
+    private static ConfigurableApplicationContext context;
+
+    @BeforeAll
+    static void startStandIns() throws IOException {
+        int redisPort = freePort();
+        redisServer = new RedisServer(redisPort);
+        redisServer.start();
+
+        context = new SpringApplicationBuilder(HmDianPingApplication.class)
+                .profiles("harness")
+                .run("--spring.redis.port=" + redisPort);
+    }
+
+    @AfterAll
+    static void stopStandIns() throws IOException {
+        if (context != null) {
+            context.close();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    /**
+     * 两个节点都把店铺缓存在进程内，更新店铺后通过Redis频道让两个节点都失效，不用等进程内缓存过期
+     */
+    @Test
+    @Order(1)
+    @SuppressWarnings("unchecked")
+    void shopCacheInvalidation() throws InterruptedException {
+        IShopService shopService = context.getBean(IShopService.class);
+        CacheClient cacheClient = context.getBean(CacheClient.class);
+        // 另一个节点：自己的进程内缓存，订阅同一个失效频道
+        CacheClient peer = new CacheClient(context.getBean(StringRedisTemplate.class),
+                context.getBean(CacheProperties.class), context.getBean(RedisMessageListenerContainer.class));
+
+        try {
+            // 1. 新建店铺，两个节点各查两次，第二次命中进程内缓存
+            Shop shop = newShop("旧名字");
+            shopService.save(shop);
+            Long id = shop.getId();
+            for (CacheClient client : Arrays.asList(cacheClient, peer, cacheClient, peer)) {
+                Assertions.assertEquals("旧名字", queryShop(client, shopService, id).getName());
+            }
+            Assertions.assertEquals(1L, cacheClient.stats().get("localHits"), "第二次查询应该命中进程内缓存");
+            Assertions.assertEquals(1L, peer.stats().get("localHits"), "第二次查询应该命中进程内缓存");
+
+            // 2. 更新店铺，两个节点很快都读到新名字
+            shopService.update(new Shop().setId(id).setName("新名字"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"新名字".equals(queryShop(peer, shopService, id).getName()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assertions.assertEquals("新名字", queryShop(peer, shopService, id).getName(), "另一个节点的进程内缓存应该已经失效");
+            Assertions.assertEquals("新名字", queryShop(cacheClient, shopService, id).getName());
+        } finally {
+            peer.close();
+        }
+    }
+
+    /**
+     * 不存在的店铺、笔记id被布隆过滤器拦下，不查Redis和数据库；新增的店铺写入本地和Redis位图，
+     * 其他节点的新增通过频道同步，绕过应用写入数据库的店铺重新构建后才能查到
+     */
+    @Test
+    @Order(2)
+    @SuppressWarnings("unchecked")
+    void bloomFilterRejectsUnknownIds() throws InterruptedException {
+        IShopService shopService = context.getBean(IShopService.class);
+        IBlogService blogService = context.getBean(IBlogService.class);
+        IdBloomFilter idBloomFilter = context.getBean(IdBloomFilter.class);
+        CacheClient cacheClient = context.getBean(CacheClient.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+
+        // 1. 启动时已经从数据库构建好
+        Map<String, Object> stats = idBloomFilter.stats();
+        Assertions.assertEquals(true, stats.get("enabled"));
+        Assertions.assertEquals(true, ((Map<String, Object>) stats.get(IdBloomFilter.SHOP)).get("ready"));
+        Assertions.assertEquals(true, ((Map<String, Object>) stats.get(IdBloomFilter.BLOG)).get("ready"));
+
+        // 2. 通过接口新增的店铺立即能查到
+        Shop shop = newShop("布隆");
+        Long id = (Long) shopService.saveShop(shop).getData();
+        Assertions.assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, id));
+
+        // 3. 不存在的id直接拒绝，不访问Redis
+        long redisLookups = redisLookups(cacheClient);
+        int unknown = 10000;
+        int rejected = 0;
+        for (long i = 0; i < unknown; i++) {
+            Result result = shopService.queryById(1_000_000_000L + i);
+            Assertions.assertFalse(result.getSuccess());
+            if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, 1_000_000_000L + i)) {
+                rejected++;
+            }
+        }
+        Assertions.assertTrue(rejected >= unknown * 0.98, "误判太多：" + (unknown - rejected));
+        Assertions.assertTrue(redisLookups(cacheClient) - redisLookups <= unknown - rejected, "被拒绝的id不应该再查Redis");
+        Assertions.assertFalse(blogService.queryBlogById(1_000_000_000L).getSuccess());
+
+        // 4. Redis里的位图和本地布局一致，新节点合并之后也能查到
+        Map<String, Object> shopStats = (Map<String, Object>) idBloomFilter.stats().get(IdBloomFilter.SHOP);
+        BloomFilter replica = new BloomFilter(IdBloomFilter.SHOP,
+                (Long) shopStats.get("expectedInsertions"), (Double) shopStats.get("fpp"));
+        String key = RedisConstants.BLOOM_KEY + IdBloomFilter.SHOP + ":" + replica.getNumBits() + ":" + replica.getNumHashes();
+        replica.merge(stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8))));
+        replica.setReady(true);
+        Assertions.assertTrue(replica.mightContain(id), "Redis位图里应该有新增的店铺");
+
+        // 5. 其他节点新增的店铺通过频道同步过来
+        long remoteId = 2_000_000_000L;
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, IdBloomFilter.SHOP + ":" + remoteId);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!idBloomFilter.mightContain(IdBloomFilter.SHOP, remoteId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, remoteId));
+
+        // 6. 直接写库的店铺要重新构建
+        Shop direct = newShop("直接写库");
+        shopService.save(direct);
+        idBloomFilter.rebuild();
+        Assertions.assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, direct.getId()));
+    }
+
+    /**
+     * 热点key失效时本节点的并发请求只查一次数据库，其他线程等它的结果；互斥锁模式下也一样
+     */
+    @Test
+    @Order(3)
+    void concurrentMissesLoadOnce() throws InterruptedException {
+        IShopService shopService = context.getBean(IShopService.class);
+        CacheClient cacheClient = context.getBean(CacheClient.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        Shop shop = newShop("热点");
+        shopService.save(shop);
+        // 两种查询方式各用一个key
+        String[] prefixes = {"cache:shop:passThrough:", "cache:shop:mutex:"};
+        int threads = 32;
+        for (String prefix : prefixes) {
+            AtomicInteger dbLoads = new AtomicInteger();
+            Function<Long, Shop> dbFallback = id -> {
+                dbLoads.incrementAndGet();
+                ThreadUtil.sleep(200);
+                return shopService.getById(id);
+            };
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Shop>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return prefix.contains("mutex")
+                            ? cacheClient.queryWithMutex(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES)
+                            : cacheClient.queryWithPassThrough(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES);
+                }));
+            }
+            start.countDown();
+            for (Future<Shop> result : results) {
+                try {
+                    Assertions.assertEquals("热点", result.get().getName());
+                } catch (ExecutionException e) {
+                    Assertions.fail(e.getCause());
+                }
+            }
+            pool.shutdown();
+            Assertions.assertEquals(1, dbLoads.get(), prefix + "并发未命中应该只查一次数据库");
+            Assertions.assertNotNull(stringRedisTemplate.opsForValue().get(prefix + shop.getId()));
+        }
+        Map<String, Object> stats = cacheClient.stats();
+        Assertions.assertTrue((Long) stats.get("coalescedLoads") > 0);
+
+        // 别的节点一直拿着锁不写缓存：等 mutex-max-wait 之后直接查数据库，不会一直等下去
+        String prefix = "cache:shop:mutexHeld:";
+        stringRedisTemplate.opsForValue().set("lock:" + prefix + shop.getId(), "1", 10, TimeUnit.SECONDS);
+        long begin = System.currentTimeMillis();
+        Shop loaded = cacheClient.queryWithMutex(prefix, shop.getId(), Shop.class, shopService::getById, 1L, TimeUnit.MINUTES);
+        long waited = System.currentTimeMillis() - begin;
+        Assertions.assertEquals("热点", loaded.getName());
+        Assertions.assertTrue(waited >= 1000 && waited < 5000, "等待了" + waited + "ms");
+        Assertions.assertNull(stringRedisTemplate.opsForValue().get(prefix + shop.getId()), "没抢到锁的节点不写缓存");
+    }
+
+    /**
+     * 每种编码写的值，其他编码的节点都能读；升级前写的JSON也照旧能读
+     */
+    @Test
+    @Order(4)
+    void cacheCodecsInteroperate() {
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        RedisMessageListenerContainer container = context.getBean(RedisMessageListenerContainer.class);
+        Shop shop = newShop("编码").setId(42L)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        Function<Long, Shop> noDb = id -> {
+            throw new IllegalStateException("不应该查数据库");
+        };
+        List<CacheClient> clients = new ArrayList<>();
+        for (CacheProperties.Codec codec : CacheProperties.Codec.values()) {
+            CacheProperties properties = new CacheProperties();
+            properties.setCodec(codec);
+            clients.add(new CacheClient(stringRedisTemplate, properties, container));
+        }
+
+        try {
+            // 1. 任意两种编码之间互相读写
+            for (CacheClient writer : clients) {
+                writer.set("codec:plain:42", shop, 1L, TimeUnit.MINUTES);
+                writer.setWithLogicalExpire("codec:logical:42", shop, 1L, TimeUnit.MINUTES);
+                for (CacheClient reader : clients) {
+                    Assertions.assertEquals(shop, reader.queryWithPassThrough("codec:plain:", 42L, Shop.class, noDb, 1L, TimeUnit.MINUTES));
+                    Assertions.assertEquals(shop, reader.queryWithLogicalExpire("codec:logical:", 42L, Shop.class, noDb, 1L, TimeUnit.MINUTES));
+                }
+            }
+
+            // 2. 升级前写的JSON
+            stringRedisTemplate.opsForValue().set("codec:plain:42", JSONUtil.toJsonStr(shop));
+            RedisData redisData = new RedisData();
+            redisData.setData(shop);
+            redisData.setExpireTime(LocalDateTime.now().plusMinutes(1));
+            stringRedisTemplate.opsForValue().set("codec:logical:42", JSONUtil.toJsonStr(redisData));
+            for (CacheClient reader : clients) {
+                Assertions.assertEquals(shop, reader.queryWithPassThrough("codec:plain:", 42L, Shop.class, noDb, 1L, TimeUnit.MINUTES));
+                Assertions.assertEquals(shop, reader.queryWithLogicalExpire("codec:logical:", 42L, Shop.class, noDb, 1L, TimeUnit.MINUTES));
+            }
+        } finally {
+            for (CacheClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * 批量查询：一次MGET，未命中的一次查库并写回Redis，不存在的写空值，结果按输入顺序
+     */
+    @Test
+    @Order(5)
+    @SuppressWarnings("unchecked")
+    void batchQuery() {
+        IShopService shopService = context.getBean(IShopService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        // 不开进程内缓存，第二次查询走MGET
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new CacheProperties(),
+                context.getBean(RedisMessageListenerContainer.class));
+        List<Long> shopIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Shop shop = newShop("批量" + i);
+            shopIds.add((Long) shopService.saveShop(shop).getData());
+        }
+        // 删掉一个：布隆过滤器里还有，数据库里没有
+        Long deleted = shopIds.get(2);
+        shopService.removeById(deleted);
+        List<Long> ids = Arrays.asList(shopIds.get(1), deleted, shopIds.get(0), shopIds.get(1));
+
+        try {
+            // 1. 第一次全部未命中，只查一次数据库
+            AtomicInteger dbCalls = new AtomicInteger();
+            Function<List<Long>, Map<Long, Shop>> dbBatchFallback = missIds -> {
+                dbCalls.incrementAndGet();
+                Assertions.assertEquals(3, missIds.size(), "重复的id只查一次");
+                return shopService.listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+            };
+            List<Shop> shops = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class, dbBatchFallback,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            Assertions.assertEquals(1, dbCalls.get());
+            Assertions.assertEquals(Arrays.asList("批量1", null, "批量0", "批量1"),
+                    shops.stream().map(shop -> shop == null ? null : shop.getName()).collect(Collectors.toList()));
+
+            // 2. 写回了Redis，不存在的是带过期时间的空值
+            Assertions.assertEquals("", stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + deleted));
+            Long nullTtl = stringRedisTemplate.getExpire(RedisConstants.CACHE_SHOP_KEY + deleted, TimeUnit.SECONDS);
+            Assertions.assertTrue(nullTtl > 0 && nullTtl <= RedisConstants.CACHE_NULL_TTL * 60);
+
+            // 3. 第二次全部命中Redis，不查数据库
+            List<Shop> cached = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                    dbBatchFallback, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            Assertions.assertEquals(Arrays.asList("批量1", null, "批量0", "批量1"),
+                    cached.stream().map(shop -> shop == null ? null : shop.getName()).collect(Collectors.toList()));
+            Assertions.assertEquals(1, dbCalls.get());
+        } finally {
+            cacheClient.close();
+        }
+
+        // 4. 接口：布隆过滤器拒绝的id直接是null
+        List<Shop> viaService = (List<Shop>) shopService.queryBatch(
+                Arrays.asList(shopIds.get(0), 3_000_000_000L, shopIds.get(1))).getData();
+        Assertions.assertEquals(3, viaService.size());
+        Assertions.assertEquals("批量0", viaService.get(0).getName());
+        Assertions.assertNull(viaService.get(1));
+        Assertions.assertEquals("批量1", viaService.get(2).getName());
+    }
+
+    /**
+     * 热点key：访问次数过阈值后自动改用逻辑过期 + 进程内缓存，冷下来之后恢复成有TTL的普通缓存
+     */
+    @Test
+    @Order(6)
+    @SuppressWarnings("unchecked")
+    void hotKeyPromotionAndDemotion() {
+        IShopService shopService = context.getBean(IShopService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        // 不开进程内缓存，只有热点key才放进去
+        CacheProperties properties = new CacheProperties();
+        properties.setHotKeyEnabled(true);
+        properties.setHotKeyThreshold(20);
+        properties.setHotKeyWindow(Duration.ofSeconds(2));
+        properties.setHotKeyWindowSlots(4);
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, properties,
+                context.getBean(RedisMessageListenerContainer.class));
+        Shop shop = newShop("热门");
+        shopService.save(shop);
+        String prefix = "cache:shop:hot:";
+        String key = prefix + shop.getId();
+        AtomicInteger dbLoads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbLoads.incrementAndGet();
+            return shopService.getById(id);
+        };
+        try {
+            // 1. 访问次数没到阈值：普通缓存，有TTL，不放进程内缓存
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertEquals("热门", cacheClient.query(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES).getName());
+            }
+            Assertions.assertEquals(1, dbLoads.get());
+            Assertions.assertTrue(cacheClient.hotKeys().isEmpty());
+            Assertions.assertTrue(stringRedisTemplate.getExpire(key) > 0);
+            Assertions.assertEquals(0L, cacheClient.stats().get("localSize"));
+
+            // 2. 过了阈值：升级为热点，后台重建成不过期的逻辑过期缓存，之后命中进程内缓存
+            long deadline = System.currentTimeMillis() + 5000;
+            while (stringRedisTemplate.getExpire(key) != -1 && System.currentTimeMillis() < deadline) {
+                Assertions.assertEquals("热门", cacheClient.query(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES).getName());
+                ThreadUtil.sleep(10);
+            }
+            Assertions.assertEquals(-1L, stringRedisTemplate.getExpire(key), "热点key在Redis里不设TTL");
+            Assertions.assertEquals(key, cacheClient.hotKeys().get(0).get("key"));
+            long lookups = redisLookups(cacheClient);
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertEquals("热门", cacheClient.query(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES).getName());
+            }
+            Assertions.assertTrue(redisLookups(cacheClient) - lookups <= 1, "热点key应该命中进程内缓存");
+            Assertions.assertEquals(1L, cacheClient.stats().get("hotKeyPromotions"));
+
+            // 3. 不再访问：窗口滑过去之后降级，Redis里的key重新有TTL，进程内缓存删掉
+            deadline = System.currentTimeMillis() + 5000;
+            while (!cacheClient.hotKeys().isEmpty() && System.currentTimeMillis() < deadline) {
+                ThreadUtil.sleep(100);
+            }
+            Assertions.assertTrue(cacheClient.hotKeys().isEmpty(), "冷下来的key应该降级");
+            Assertions.assertEquals(1L, cacheClient.stats().get("hotKeyDemotions"));
+            deadline = System.currentTimeMillis() + 5000;
+            Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.SECONDS);
+            while (!(ttl > 0) && System.currentTimeMillis() < deadline) {
+                ThreadUtil.sleep(20);
+                ttl = stringRedisTemplate.getExpire(key, TimeUnit.SECONDS);
+            }
+            Assertions.assertTrue(ttl > 0 && ttl <= 60, "降级后的key应该重新有TTL：" + ttl);
+            Assertions.assertEquals(0L, cacheClient.stats().get("localSize"));
+            Assertions.assertEquals("热门", cacheClient.query(prefix, shop.getId(), Shop.class, dbFallback, 1L, TimeUnit.MINUTES).getName());
+            Assertions.assertEquals(2, dbLoads.get(), "只有第一次查询和降级之后查数据库");
+        } finally {
+            cacheClient.close();
+        }
+
+        // 4. 接口：没有预热过的店铺也能查到
+        Shop fresh = newShop("新店");
+        Long freshId = (Long) shopService.saveShop(fresh).getData();
+        Result result = shopService.queryById(freshId);
+        Assertions.assertTrue(result.getSuccess(), result.getErrorMsg());
+        Assertions.assertEquals("新店", ((Shop) result.getData()).getName());
+        Assertions.assertTrue(((List<Map<String, Object>>) shopService.queryHotKeys().getData()).isEmpty());
+    }
+
+    private static long redisLookups(CacheClient cacheClient) {
+        Map<String, Object> stats = cacheClient.stats();
+        return (Long) stats.get("redisHits") + (Long) stats.get("redisMisses");
+    }
+
+    private static Shop queryShop(CacheClient client, IShopService shopService, Long id) {
+        return client.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, shopService::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 测试用的店铺，除了名字其他字段都一样
+     */
+    private static Shop newShop(String name) {
+        return new Shop().setName(name).setTypeId(1L).setImages("").setAddress("金华路")
+                .setX(120.149192).setY(30.316078).setSold(0).setComments(0).setScore(37);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,745 @@
+package com.hmdp;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.IdProperties;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillReconcileResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import redis.embedded.RedisServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 秒杀端到端压测：用内嵌Redis和H2启动整个应用，并发调用setKillVoucher，
+ * 统计吞吐、延迟、消费延迟和全部落库的耗时，并校验不超卖、一人一单。
+ * <p>
+ * 规模通过系统属性调整，例如 mvn test -Dtest=SeckillHarnessTests -Dharness.users=20000 -Dharness.stock=5000，
+ * hmdp.seckill.* 的配置也可以用系统属性覆盖，例如 -Dhmdp.seckill.stock-shards=4
+ */
+@Slf4j
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class SeckillHarnessTests {
+
+    private static final int USERS = Integer.getInteger("harness.users", 2000);
+    private static final int STOCK = Integer.getInteger("harness.stock", 500);
+    private static final int THREADS = Integer.getInteger("harness.threads", 64);
+    private static final int ATTEMPTS = Integer.getInteger("harness.attempts", 2);
+    private static final long PERSIST_TIMEOUT_MS = Long.getLong("harness.persistTimeoutMs", 60000);
+
+    private static final String JOURNAL_DIR = "target/harness-journal";
+
+    private static final String ARCHIVE_DIR = "target/harness-archive";
+
+    private static int redisPort;
+
+    private static RedisServer redisServer;
+
+    private static ConfigurableApplicationContext context;
+
+    @BeforeAll
+    static void startStandIns() throws IOException {
+        FileUtil.del(JOURNAL_DIR);
+        FileUtil.del(new File(ARCHIVE_DIR));
+        redisPort = freePort();
+        redisServer = new RedisServer(redisPort);
+        redisServer.start();
+
+        context = new SpringApplicationBuilder(HmDianPingApplication.class)
+                .profiles("harness")
+                .run("--spring.redis.port=" + redisPort);
+    }
+
+    @AfterAll
+    static void stopStandIns() throws IOException {
+        if (context != null) {
+            context.close();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    @Order(1)
+    void seckillUnderLoad() throws InterruptedException {
+        IVoucherService voucherService = context.getBean(IVoucherService.class);
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+
+        // 1. 新建秒杀券
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+
+        // 2. 后台采样消费延迟：抢到的订单数 - 已落库的订单数
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicLong maxLag = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            long persisted = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            maxLag.accumulateAndGet(admitted.get() - persisted, Math::max);
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        // 3. 并发抢购，每个用户抢ATTEMPTS次
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        long[] latencies = new long[USERS * ATTEMPTS];
+        AtomicInteger rejectedDuplicate = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(USERS);
+        long begin = System.nanoTime();
+        for (int u = 0; u < USERS; u++) {
+            int index = u;
+            es.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(10000L + index);
+                UserHolder.saveUser(user);
+                try {
+                    for (int k = 0; k < ATTEMPTS; k++) {
+                        long start = System.nanoTime();
+                        Result result = voucherOrderService.setKillVoucher(voucherId);
+                        latencies[index * ATTEMPTS + k] = System.nanoTime() - start;
+                        if (result.getSuccess()) {
+                            admitted.incrementAndGet();
+                        } else if ("不能重复下单".equals(result.getErrorMsg())) {
+                            rejectedDuplicate.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long loadNanos = System.nanoTime() - begin;
+        es.shutdown();
+
+        // 4. 等待全部落库
+        long persisted;
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+        do {
+            persisted = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            if (persisted >= admitted.get()) {
+                break;
+            }
+            Thread.sleep(20);
+        } while (System.currentTimeMillis() < deadline);
+        long persistNanos = System.nanoTime() - begin;
+        sampler.shutdownNow();
+
+        // 5. 输出报告
+        Arrays.sort(latencies);
+        int requests = latencies.length;
+        log.info("users = {}, stock = {}, threads = {}, attempts = {}", USERS, STOCK, THREADS, ATTEMPTS);
+        log.info("requests = {}, admitted = {}, duplicateRejected = {}", requests, admitted.get(), rejectedDuplicate.get());
+        log.info("throughput = {} req/s", requests * 1_000_000_000L / loadNanos);
+        log.info("latency p50 = {}ms, p99 = {}ms, max = {}ms", String.format("%.3f", latencies[requests / 2] / 1e6),
+                String.format("%.3f", latencies[(int) (requests * 0.99)] / 1e6), String.format("%.3f", latencies[requests - 1] / 1e6));
+        log.info("max consumer lag = {} orders", maxLag.get());
+        log.info("time to full persistence = {}ms", TimeUnit.NANOSECONDS.toMillis(persistNanos));
+
+        // 6. 校验：不超卖、一人一单，Redis和数据库一致
+        Assertions.assertEquals(Math.min(USERS, STOCK), admitted.get(), "抢到的订单数");
+        Assertions.assertEquals(admitted.get(), persisted, "落库的订单数");
+
+        List<VoucherOrder> orders = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list();
+        Set<Long> buyers = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toCollection(HashSet::new));
+        Assertions.assertEquals(orders.size(), buyers.size(), "一人一单");
+
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        Assertions.assertEquals(STOCK - persisted, (long) seckillVoucher.getStock(), "数据库库存");
+        Assertions.assertTrue(seckillVoucher.getStock() >= 0, "数据库库存不能为负");
+
+        String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        long redisStock = 0;
+        if (shards == null) {
+            redisStock = Long.parseLong(stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+        } else {
+            for (int i = 0; i < Integer.parseInt(shards); i++) {
+                redisStock += Long.parseLong(stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i));
+            }
+        }
+        Assertions.assertEquals(STOCK - admitted.get(), redisStock, "Redis库存");
+
+        // 7. 全部落库之后对账，Redis和数据库应该完全一致
+        SeckillReconcileResult reconcile = seckillVoucherService.reconcile(voucherId);
+        Assertions.assertFalse(reconcile.isDrift(), "对账不一致：" + reconcile);
+    }
+
+    /**
+     * 一次抢多张券：全部成功才下单时一张抢不到就整单不扣，能抢几张算几张时只下能抢到的
+     */
+    @Test
+    @Order(2)
+    @SuppressWarnings("unchecked")
+    void basketPurchase() throws InterruptedException {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+
+        // 1. 两张库存充足的券，一张只剩1件
+        List<Long> basket = Arrays.asList(createVoucher(10), createVoucher(10), createVoucher(1));
+        Long scarce = basket.get(2);
+
+        // 2. 第一个用户整单抢到
+        List<Map<String, Object>> items = (List<Map<String, Object>>) purchase(voucherOrderService, 70001L, basket, true).getData();
+        Assertions.assertTrue(items.stream().allMatch(item -> (Boolean) item.get("success")));
+        Assertions.assertEquals(3, items.stream().map(item -> item.get("orderId")).distinct().count(), "订单id不能重复");
+
+        // 3. 第二个用户整单抢：最后一张没库存，整单取消，前两张的库存不能动
+        items = (List<Map<String, Object>>) purchase(voucherOrderService, 70002L, basket, true).getData();
+        Assertions.assertTrue(items.stream().noneMatch(item -> (Boolean) item.get("success")));
+        Assertions.assertEquals("库存不足", items.get(2).get("reason"));
+        Assertions.assertEquals("9", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + basket.get(0)));
+
+        // 4. 第二个用户改成能抢几张算几张
+        items = (List<Map<String, Object>>) purchase(voucherOrderService, 70002L, basket, false).getData();
+        Assertions.assertEquals(Arrays.asList(true, true, false),
+                items.stream().map(item -> item.get("success")).collect(Collectors.toList()));
+
+        // 5. 重复抢被一人一单拦下
+        items = (List<Map<String, Object>>) purchase(voucherOrderService, 70002L, basket, false).getData();
+        Assertions.assertEquals("不能重复下单", items.get(0).get("reason"));
+
+        // 6. 等待落库，校验数据库库存
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+        while (voucherOrderService.query().in("voucher_id", basket).count() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertEquals(5, voucherOrderService.query().in("voucher_id", basket).count(), "落库的订单数");
+        Assertions.assertEquals(8, (int) seckillVoucherService.getById(basket.get(0)).getStock());
+        Assertions.assertEquals(8, (int) seckillVoucherService.getById(basket.get(1)).getStock());
+        Assertions.assertEquals(0, (int) seckillVoucherService.getById(scarce).getStock());
+    }
+
+    /**
+     * 超时未支付的订单被取消，库存还给Redis和数据库，别的用户可以接着抢，取消订单的用户不能再抢
+     */
+    @Test
+    @Order(3)
+    void unpaidOrderTimeout() throws InterruptedException {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        SeckillProperties seckillProperties = context.getBean(SeckillProperties.class);
+        Duration timeout = seckillProperties.getUnpaidTimeout();
+        seckillProperties.setUnpaidTimeout(Duration.ofSeconds(1));
+        try {
+            // 1. 5个用户抢光库存
+            int stock = 5;
+            Long voucherId = createVoucher(stock);
+            for (long u = 0; u < stock; u++) {
+                Assertions.assertTrue(purchase(voucherOrderService, 80000L + u, voucherId).getSuccess());
+            }
+            Assertions.assertEquals("库存不足", purchase(voucherOrderService, 80100L, voucherId).getErrorMsg());
+
+            // 2. 等待落库后超时取消，订单状态是最后写的
+            long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+            List<VoucherOrder> orders;
+            do {
+                Thread.sleep(100);
+                orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+            } while ((orders.size() < stock || !orders.stream().allMatch(o -> "CANCELLED".equals(stringRedisTemplate
+                    .opsForHash().get(RedisConstants.ORDER_STATUS_KEY + o.getId(), "status"))))
+                    && System.currentTimeMillis() < deadline);
+            Assertions.assertEquals(stock, orders.size());
+            Assertions.assertTrue(orders.stream().allMatch(o -> o.getStatus() == 4), "订单都应该已取消");
+
+            // 3. 库存还回来了
+            Assertions.assertEquals(stock, (int) seckillVoucherService.getById(voucherId).getStock(), "数据库库存");
+            Assertions.assertEquals(String.valueOf(stock),
+                    stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId), "Redis库存");
+
+            // 4. 别的用户能接着抢，取消订单的用户不能再抢
+            Assertions.assertTrue(purchase(voucherOrderService, 80100L, voucherId).getSuccess());
+            Assertions.assertEquals("不能重复下单", purchase(voucherOrderService, 80000L, voucherId).getErrorMsg());
+        } finally {
+            seckillProperties.setUnpaidTimeout(timeout);
+        }
+    }
+
+    /**
+     * 库存分片：先扣用户自己的分片，卖完了再换下一个，一次脚本调用完成；不超卖、一人一单；
+     * 对账的差额平摊到各个分片
+     */
+    @Test
+    @Order(6)
+    void shardedStockRouting() throws InterruptedException {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        SeckillProperties seckillProperties = context.getBean(SeckillProperties.class);
+        int shardsBefore = seckillProperties.getStockShards();
+        seckillProperties.setStockShards(4);
+        int stock = 40;
+        Long voucherId;
+        try {
+            voucherId = createVoucher(stock);
+        } finally {
+            seckillProperties.setStockShards(shardsBefore);
+        }
+
+        // 1. 每个分片4个用户，只扣自己的分片
+        for (long u = 0; u < 16; u++) {
+            Assertions.assertTrue(purchase(voucherOrderService, 90000L + u, voucherId).getSuccess());
+        }
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals("6", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i),
+                    "分片" + i + "的库存");
+        }
+
+        // 2. 剩下的用户都在分片0，并发抢两次：分片0卖完之后换到别的分片，一人一单由落库的订单校验
+        int users = 60;
+        AtomicInteger admitted = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(16);
+        CountDownLatch latch = new CountDownLatch(users);
+        for (int u = 0; u < users; u++) {
+            long userId = 90100L + 4L * u;
+            es.submit(() -> {
+                try {
+                    for (int k = 0; k < 2; k++) {
+                        Result result = purchase(voucherOrderService, userId, voucherId);
+                        if (result.getSuccess()) {
+                            admitted.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        es.shutdown();
+        Assertions.assertEquals(stock - 16, admitted.get(), "剩下的库存都能卖出去，不能超卖");
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i),
+                    "分片" + i + "的库存");
+        }
+
+        // 3. 全部落库，一人一单，对账一致
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+        while (voucherOrderService.query().eq("voucher_id", voucherId).count() < stock && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        List<VoucherOrder> orders = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list();
+        Assertions.assertEquals(stock, orders.size(), "落库的订单数");
+        Assertions.assertEquals(stock, orders.stream().map(VoucherOrder::getUserId).distinct().count(), "一人一单");
+        Assertions.assertEquals(0, (int) seckillVoucherService.getById(voucherId).getStock());
+        Assertions.assertFalse(seckillVoucherService.reconcile(voucherId).isDrift());
+
+        // 4. 数据库补了10个库存，对账补到各个分片：3、3、2、2；再扣回去，每个分片都扣到0
+        seckillVoucherService.update().setSql("stock = stock + 10").eq("voucher_id", voucherId).update();
+        Assertions.assertTrue(seckillVoucherService.reconcile(voucherId).isDrift());
+        int[] expected = {3, 3, 2, 2};
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals(String.valueOf(expected[i]),
+                    stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i),
+                    "对账后分片" + i + "的库存");
+        }
+        seckillVoucherService.update().setSql("stock = stock - 10").eq("voucher_id", voucherId).update();
+        seckillVoucherService.reconcile(voucherId);
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i),
+                    "对账后分片" + i + "的库存");
+        }
+        Assertions.assertFalse(seckillVoucherService.reconcile(voucherId).isDrift());
+    }
+
+    /**
+     * 不同分片数下的秒杀吞吐量。分片都在同一个Redis上，脚本是串行执行的，分片数不会提高单机的吞吐量，
+     * 这里记录下来对比，同时校验每种分片数都不超卖、一人一单
+     */
+    @Test
+    @Order(9)
+    void shardCountThroughput() throws InterruptedException {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        SeckillProperties seckillProperties = context.getBean(SeckillProperties.class);
+        int shardsBefore = seckillProperties.getStockShards();
+        int stock = 2000;
+        int users = 4000;
+        for (int shards : new int[]{1, 2, 4, 8}) {
+            seckillProperties.setStockShards(shards);
+            Long voucherId;
+            try {
+                voucherId = createVoucher(stock);
+            } finally {
+                seckillProperties.setStockShards(shardsBefore);
+            }
+
+            AtomicInteger admitted = new AtomicInteger();
+            ExecutorService es = Executors.newFixedThreadPool(32);
+            CountDownLatch latch = new CountDownLatch(users);
+            long userBase = 2000000L + shards * 100000L;
+            long start = System.nanoTime();
+            for (int u = 0; u < users; u++) {
+                long userId = userBase + u;
+                es.submit(() -> {
+                    try {
+                        if (purchase(voucherOrderService, userId, voucherId).getSuccess()) {
+                            admitted.incrementAndGet();
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            long elapsedNanos = System.nanoTime() - start;
+            es.shutdown();
+            log.info("shards = {}, requests = {}, admitted = {}, elapsed = {} ms, throughput = {} req/s",
+                    shards, users, admitted.get(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    String.format("%.0f", users * 1e9 / elapsedNanos));
+            Assertions.assertEquals(stock, admitted.get(), shards + "个分片时卖出的库存");
+
+            // 等订单落库，不影响下一轮的计时
+            long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+            while (voucherOrderService.query().eq("voucher_id", voucherId).count() < stock && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            List<VoucherOrder> orders = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list();
+            Assertions.assertEquals(stock, orders.size(), shards + "个分片时落库的订单数");
+            Assertions.assertEquals(stock, orders.stream().map(VoucherOrder::getUserId).distinct().count(), "一人一单");
+        }
+    }
+
+    /**
+     * 逐个INCR和号段模式并发发号都不重复；跨天前取到日期的请求晚到时，不把号段切回前一天
+     */
+    @Test
+    @Order(7)
+    void idWorkerNeverRepeats() throws InterruptedException {
+        RedisIdWorker redisIdWorker = context.getBean(RedisIdWorker.class);
+        IdProperties idProperties = context.getBean(IdProperties.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        IdProperties.Mode mode = idProperties.getMode();
+        try {
+            // 1. 两种模式并发发号
+            for (IdProperties.Mode m : new IdProperties.Mode[]{IdProperties.Mode.INCR, IdProperties.Mode.SEGMENT}) {
+                idProperties.setMode(m);
+                int threads = 16;
+                int perThread = 2000;
+                Set<Long> ids = ConcurrentHashMap.newKeySet();
+                ExecutorService es = Executors.newFixedThreadPool(threads);
+                CountDownLatch latch = new CountDownLatch(threads);
+                for (int t = 0; t < threads; t++) {
+                    es.submit(() -> {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                ids.add(redisIdWorker.nextId("order"));
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                es.shutdown();
+                Assertions.assertEquals(threads * perThread, ids.size(), m + "模式下ID不能重复");
+            }
+
+            // 2. 带着前一天日期的请求从前一天的计数器取号，当天的号段不受影响
+            long first = redisIdWorker.nextId("harness") & 0xFFFFFFFFL;
+            long now = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+            Object yesterday = ReflectUtil.invoke(redisIdWorker, "dateKey", now - 86400);
+            Assertions.assertEquals(1L, (long) ReflectUtil.invoke(redisIdWorker, "nextCount", "harness", yesterday));
+            Assertions.assertEquals(first + 1, redisIdWorker.nextId("harness") & 0xFFFFFFFFL, "当天的号段不能被换掉");
+        } finally {
+            idProperties.setMode(mode);
+        }
+    }
+
+    /**
+     * 下单用户用SET和位图存储：userId为 1..users 的连续数字时位图只占 users/8 字节左右，比SET小得多，记录的用户一样
+     */
+    @Test
+    @Order(8)
+    void buyerLayoutMemory() {
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        int users = 200_000;
+        int batch = 10000;
+        String setKey = RedisConstants.SECKILL_ORDER_KEY + "layout";
+        String bitmapKey = RedisConstants.SECKILL_BUYERS_KEY + "layout";
+        byte[] rawSetKey = setKey.getBytes(StandardCharsets.UTF_8);
+        byte[] rawBitmapKey = bitmapKey.getBytes(StandardCharsets.UTF_8);
+
+        // 1. 分批pipeline写入
+        for (int from = 1; from <= users; from += batch) {
+            int start = from;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int u = start; u < start + batch && u <= users; u++) {
+                    connection.setCommands().sAdd(rawSetKey, String.valueOf(u).getBytes(StandardCharsets.UTF_8));
+                    connection.stringCommands().setBit(rawBitmapKey, u, true);
+                }
+                return null;
+            });
+        }
+
+        try {
+            // 2. 两种方式记录的用户一致
+            Assertions.assertEquals(Long.valueOf(users), stringRedisTemplate.opsForSet().size(setKey));
+            Assertions.assertEquals(Long.valueOf(users), stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.stringCommands().bitCount(rawBitmapKey)));
+            Assertions.assertTrue(stringRedisTemplate.opsForSet().isMember(setKey, String.valueOf(users)));
+            Assertions.assertFalse(stringRedisTemplate.opsForSet().isMember(setKey, String.valueOf(users + 1)));
+            Assertions.assertTrue(stringRedisTemplate.opsForValue().getBit(bitmapKey, users));
+            Assertions.assertFalse(stringRedisTemplate.opsForValue().getBit(bitmapKey, users + 1));
+
+            // 3. 内存占用：位图不超过 users/8 的两倍（分配器按2的幂取整），SET至少是位图的10倍
+            DefaultRedisScript<Long> memoryUsage = new DefaultRedisScript<>(
+                    "return redis.call('memory', 'usage', KEYS[1], 'samples', '0')", Long.class);
+            long setBytes = stringRedisTemplate.execute(memoryUsage, Collections.singletonList(setKey));
+            long bitmapBytes = stringRedisTemplate.execute(memoryUsage, Collections.singletonList(bitmapKey));
+            Assertions.assertTrue(bitmapBytes <= users / 8 * 2, "位图占用" + bitmapBytes + "字节");
+            Assertions.assertTrue(setBytes >= bitmapBytes * 10, "SET占用" + setBytes + "字节，位图" + bitmapBytes + "字节");
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+        }
+    }
+
+    private static Result purchase(IVoucherOrderService voucherOrderService, Long userId, Long voucherId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.setKillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private static Long createVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("组合券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private static Result purchase(IVoucherOrderService voucherOrderService, Long userId, List<Long> basket, boolean allOrNothing) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            Result result = voucherOrderService.setKillVouchers(basket, allOrNothing);
+            Assertions.assertTrue(result.getSuccess(), result.getErrorMsg());
+            return result;
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    /**
+     * Redis挂掉期间的秒杀请求写入本地订单日志，Redis恢复后回放落库，一个都不能丢
+     */
+    @Test
+    @Order(4)
+    void journalReplayAfterRedisOutage() throws Exception {
+        IVoucherService voucherService = context.getBean(IVoucherService.class);
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        int stock = 100;
+        int users = 50;
+
+        // 1. 新建秒杀券
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("日志回放券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+        // 库存很少的券和已经结束的券，日志也不能多收
+        int smallStock = 3;
+        Long smallVoucherId = createVoucher(smallStock);
+        Voucher ended = new Voucher();
+        ended.setShopId(1L);
+        ended.setTitle("已结束券");
+        ended.setPayValue(100L);
+        ended.setActualValue(1000L);
+        ended.setType(1);
+        ended.setStock(stock);
+        ended.setBeginTime(LocalDateTime.now().minusHours(2));
+        ended.setEndTime(LocalDateTime.now().minusHours(1));
+        voucherService.addSeckillVoucher(ended);
+
+        // 2. 停掉Redis，下单全部写进本地日志，重复点击在本地就被拦下
+        redisServer.stop();
+        Set<Long> orderIds = new HashSet<>();
+        for (int u = 0; u < users; u++) {
+            UserDTO user = new UserDTO();
+            user.setId(50000L + u);
+            UserHolder.saveUser(user);
+            try {
+                Result result = voucherOrderService.setKillVoucher(voucherId);
+                Assertions.assertTrue(result.getSuccess(), result.getErrorMsg());
+                orderIds.add((Long) result.getData());
+                Assertions.assertFalse(voucherOrderService.setKillVoucher(voucherId).getSuccess(), "重复下单");
+            } finally {
+                UserHolder.removeUser();
+            }
+        }
+        Assertions.assertEquals(users, orderIds.size(), "订单id不能重复");
+        Assertions.assertEquals(0, voucherOrderService.query().eq("voucher_id", voucherId).count());
+
+        // 2.1 日志按本地的库存和秒杀时间校验：超过库存、已经结束的都拦下
+        int smallAdmitted = 0;
+        for (int u = 0; u < smallStock + 2; u++) {
+            Result result = purchase(voucherOrderService, 50000L + u, smallVoucherId);
+            if (result.getSuccess()) {
+                smallAdmitted++;
+            } else {
+                Assertions.assertEquals("库存不足", result.getErrorMsg());
+            }
+        }
+        Assertions.assertEquals(smallStock, smallAdmitted, "日志最多收库存那么多单");
+        Result endedResult = purchase(voucherOrderService, 50000L, ended.getId());
+        Assertions.assertFalse(endedResult.getSuccess());
+        Assertions.assertEquals("秒杀已经结束", endedResult.getErrorMsg());
+
+        // 3. 重启Redis，等待回放和对账
+        redisServer = new RedisServer(redisPort);
+        redisServer.start();
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+        String redisStock = null;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                redisStock = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+                if (String.valueOf(stock - users).equals(redisStock)) {
+                    break;
+                }
+            } catch (DataAccessException e) {
+                // 还没重连上
+            }
+            Thread.sleep(100);
+        }
+
+        // 4. 校验：日志里的订单全部落库，库存一致，日志文件已删除
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        Assertions.assertEquals(orderIds, orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()), "落库的订单");
+        Assertions.assertEquals(stock - users, (int) seckillVoucherService.getById(voucherId).getStock(), "数据库库存");
+        Assertions.assertEquals(String.valueOf(stock - users), redisStock, "Redis库存");
+        Assertions.assertTrue(FileUtil.isDirEmpty(new File(JOURNAL_DIR)), "本地日志应该已经删除");
+        Assertions.assertEquals(smallStock, voucherOrderService.query().eq("voucher_id", smallVoucherId).count());
+        Assertions.assertEquals(0, voucherOrderService.query().eq("voucher_id", ended.getId()).count());
+    }
+
+    /**
+     * 处理完的订单消息被裁剪出stream.orders，删除前已经归档到压缩文件里
+     */
+    @Test
+    @Order(5)
+    @SuppressWarnings("unchecked")
+    void streamTrimAndArchive() throws Exception {
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+
+        // 1. 下几个订单
+        int stock = 20;
+        Long voucherId = createVoucher(stock);
+        Set<String> orderIds = new HashSet<>();
+        for (long u = 0; u < stock; u++) {
+            Result result = purchase(voucherOrderService, 90000L + u, voucherId);
+            Assertions.assertTrue(result.getSuccess(), result.getErrorMsg());
+            orderIds.add(result.getData().toString());
+        }
+
+        // 2. 等待落库、裁剪
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MS;
+        while ((voucherOrderService.query().eq("voucher_id", voucherId).count() < stock
+                || stringRedisTemplate.opsForStream().size("stream.orders") > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(stock, voucherOrderService.query().eq("voucher_id", voucherId).count(), "落库的订单数");
+        Assertions.assertEquals(0L, stringRedisTemplate.opsForStream().size("stream.orders"), "stream应该已经裁剪");
+        Map<String, Object> stats = (Map<String, Object>) voucherOrderService.queryConsumerStats().getData();
+        Assertions.assertEquals(0L, stats.get("streamLength"));
+
+        // 3. 归档文件里能找到全部订单
+        Set<String> archived = new HashSet<>();
+        for (File file : FileUtil.loopFiles(new File(ARCHIVE_DIR))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+                reader.lines().forEach(line -> archived.add(JSONUtil.parseObj(line).getStr("id")));
+            }
+        }
+        Assertions.assertTrue(archived.containsAll(orderIds), "归档的订单");
+        Assertions.assertTrue((Long) stats.get("trimmed") >= stock, "裁剪的消息数：" + stats.get("trimmed"));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
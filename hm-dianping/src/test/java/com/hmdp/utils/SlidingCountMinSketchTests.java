@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 滑动窗口Count-Min Sketch的估计误差和窗口滑动
+ */
+class SlidingCountMinSketchTests {
+
+    /**
+     * 每行很窄，一个很热的key和一个只访问一次的key几乎一定在某一行撞上，
+     * 但每行的位置互相独立，不会每一行都撞上
+     */
+    @Test
+    void coldKeyIsNotInflatedByHotKey() {
+        SlidingCountMinSketch sketch = new SlidingCountMinSketch(4, 16, 1, 60000);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("cache:shop:1");
+        }
+        sketch.add("cache:shop:2");
+
+        Assertions.assertEquals(1000, sketch.estimate("cache:shop:1"));
+        Assertions.assertEquals(1, sketch.estimate("cache:shop:2"));
+    }
+
+    /**
+     * 很多key时每个key的估计值和真实值相差很小，估计值不会偏小
+     */
+    @Test
+    void estimatesStayCloseToTrueCounts() {
+        SlidingCountMinSketch sketch = new SlidingCountMinSketch(4, 1024, 6, 60000);
+        int keys = 200;
+        for (int i = 0; i < keys; i++) {
+            for (int j = 0; j <= i % 5; j++) {
+                sketch.add("cache:shop:" + i);
+            }
+        }
+        long overestimate = 0;
+        for (int i = 0; i < keys; i++) {
+            int estimate = sketch.estimate("cache:shop:" + i);
+            Assertions.assertTrue(estimate >= i % 5 + 1, "估计值不会偏小");
+            overestimate += estimate - (i % 5 + 1);
+        }
+        Assertions.assertTrue(overestimate <= keys / 50, "总共多估了" + overestimate);
+    }
+
+    @Test
+    void countsExpireAfterWindow() {
+        SlidingCountMinSketch sketch = new SlidingCountMinSketch(4, 1024, 4, 400);
+        for (int i = 0; i < 10; i++) {
+            sketch.add("cache:shop:1");
+        }
+        Assertions.assertEquals(10, sketch.estimate("cache:shop:1"));
+
+        ThreadUtil.sleep(500);
+        Assertions.assertEquals(0, sketch.estimate("cache:shop:1"));
+        Assertions.assertEquals(1, sketch.add("cache:shop:1"));
+    }
+}